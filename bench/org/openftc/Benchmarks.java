@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import net.lingala.zip4j.core.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Measures the latency and throughput of the copy, delete and extract
+ * stages of the updater against trees of different shapes. Each
+ * iteration gets a freshly created input which is not part of the
+ * measured time.
+ */
+public class Benchmarks
+{
+    interface Operation
+    {
+        /*
+         * Prepares the input for one iteration in dir
+         */
+        void setup(File dir, TreeShape shape, double scale) throws Exception;
+
+        /*
+         * The measured part
+         */
+        void run(File dir) throws Exception;
+    }
+
+    @Parameter(names = "-h", help = true, description = "Print help")
+    private boolean help;
+
+    @Parameter(names = "--dir", description = "The scratch directory to run in; it should be on the same disk as the merge directory would be")
+    private String dir = System.getProperty("java.io.tmpdir") + File.separator + "updaterBenchmarks";
+
+    @Parameter(names = "--ops", description = "Comma-separated operations to run")
+    private List<String> ops = new ArrayList<>(Arrays.asList("copy", "copy-serial", "delete", "delete-async", "extract-zip4j", "extract-parallel", "extract-stream"));
+
+    @Parameter(names = "--shapes", description = "Comma-separated tree shapes to run against")
+    private List<String> shapes = new ArrayList<>(Arrays.asList("MANY_SMALL", "FEW_LARGE", "DEEP"));
+
+    @Parameter(names = "--scale", description = "Multiplier for the number of files in each shape")
+    private double scale = 1;
+
+    @Parameter(names = "--warmup", description = "The number of unmeasured iterations")
+    private int warmup = 2;
+
+    @Parameter(names = "--iterations", description = "The number of measured iterations")
+    private int iterations = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        Benchmarks instance = new Benchmarks();
+
+        JCommander jCommander =
+                JCommander.newBuilder()
+                        .addObject(instance)
+                        .programName("java org.openftc.Benchmarks")
+                        .build();
+
+        jCommander.parse(args);
+
+        if(instance.help)
+        {
+            jCommander.usage();
+            return;
+        }
+
+        instance.run();
+    }
+
+    private void run() throws Exception
+    {
+        File root = new File(dir);
+
+        System.out.println(String.format("%-16s %-12s %10s %10s %10s %10s %10s",
+                "Operation", "Shape", "Mean ms", "p50 ms", "Max ms", "Ops/s", "MB/s"));
+
+        for(String shapeName : shapes)
+        {
+            TreeShape shape = TreeShape.valueOf(shapeName.trim());
+
+            for(String op : ops)
+            {
+                measure(op.trim(), operationFor(op.trim()), shape, root);
+            }
+        }
+
+        if(root.exists())
+        {
+            FileUtil.deleteFolder(root);
+        }
+    }
+
+    private void measure(String name, Operation operation, TreeShape shape, File root) throws Exception
+    {
+        List<Double> times = new ArrayList<>();
+
+        for(int i = 0; i < warmup + iterations; i++)
+        {
+            File iterationDir = new File(root, name + "-" + shape + "-" + i);
+
+            if(iterationDir.exists())
+            {
+                FileUtil.deleteFolder(iterationDir);
+            }
+
+            iterationDir.mkdirs();
+            operation.setup(iterationDir, shape, scale);
+
+            long start = System.nanoTime();
+            operation.run(iterationDir);
+            long end = System.nanoTime();
+
+            if(i >= warmup)
+            {
+                times.add((end - start) / 1e6);
+            }
+
+            if(iterationDir.exists())
+            {
+                FileUtil.deleteFolder(iterationDir);
+            }
+        }
+
+        Collections.sort(times);
+
+        double mean = 0;
+        for(double time : times)
+        {
+            mean += time;
+        }
+        mean /= times.size();
+
+        DecimalFormat format = new DecimalFormat("0.##");
+
+        System.out.println(String.format("%-16s %-12s %10s %10s %10s %10s %10s",
+                name,
+                shape,
+                format.format(mean),
+                format.format(times.get(times.size() / 2)),
+                format.format(times.get(times.size() - 1)),
+                format.format(1000d / mean),
+                format.format(shape.totalBytes(scale) / (1024d * 1024d) / (mean / 1000d))));
+    }
+
+    private static Operation operationFor(String name)
+    {
+        switch (name)
+        {
+            case "copy":
+                return copy(Runtime.getRuntime().availableProcessors());
+
+            case "copy-serial":
+                return copy(1);
+
+            case "delete":
+                return new Operation()
+                {
+                    @Override
+                    public void setup(File dir, TreeShape shape, double scale) throws Exception
+                    {
+                        shape.create(new File(dir, "tree"), scale, 0);
+                    }
+
+                    @Override
+                    public void run(File dir) throws Exception
+                    {
+                        FileUtil.deleteFolder(new File(dir, "tree"));
+                    }
+                };
+
+            case "delete-async":
+                return new Operation()
+                {
+                    @Override
+                    public void setup(File dir, TreeShape shape, double scale) throws Exception
+                    {
+                        shape.create(new File(dir, "tree"), scale, 0);
+                    }
+
+                    @Override
+                    public void run(File dir) throws Exception
+                    {
+                        Trash trash = new Trash(new File(dir, "trash"), Runtime.getRuntime().availableProcessors());
+                        trash.deleteFolder(new File(dir, "tree"));
+                        trash.awaitCompletion();
+                        trash.shutdown();
+                    }
+                };
+
+            case "extract-zip4j":
+                return new Operation()
+                {
+                    @Override
+                    public void setup(File dir, TreeShape shape, double scale) throws Exception
+                    {
+                        createZip(dir, shape, scale);
+                    }
+
+                    @Override
+                    public void run(File dir) throws Exception
+                    {
+                        new ZipFile(new File(dir, "tree.zip")).extractAll(new File(dir, "out").getAbsolutePath());
+                    }
+                };
+
+            case "extract-parallel":
+                return new Operation()
+                {
+                    @Override
+                    public void setup(File dir, TreeShape shape, double scale) throws Exception
+                    {
+                        createZip(dir, shape, scale);
+                    }
+
+                    @Override
+                    public void run(File dir) throws Exception
+                    {
+                        int numThreads = Runtime.getRuntime().availableProcessors();
+                        new ParallelExtractor(numThreads).extractAll(new File(dir, "tree.zip"), new File(dir, "out"));
+                    }
+                };
+
+            case "extract-stream":
+                return new Operation()
+                {
+                    @Override
+                    public void setup(File dir, TreeShape shape, double scale) throws Exception
+                    {
+                        createZip(dir, shape, scale);
+                    }
+
+                    @Override
+                    public void run(File dir) throws Exception
+                    {
+                        final File out = new File(dir, "out");
+                        EntryWriter writer = new EntryWriter(Updater.Module.ROBOTCORE, false, false, new EntryWriter.Summary());
+                        ArchiveStreamer.stream(new File(dir, "tree.zip"), Updater.Archive.SOURCE_JAR, (item, relativePath) -> new File(out, relativePath), writer, new ProgressRenderer.Task(""));
+                    }
+                };
+
+            default:
+                throw new IllegalArgumentException("Unknown operation '" + name + "'");
+        }
+    }
+
+    private static Operation copy(final int numThreads)
+    {
+        return new Operation()
+        {
+            @Override
+                    public void setup(File dir, TreeShape shape, double scale) throws Exception
+            {
+                shape.create(new File(dir, "tree"), scale, 0);
+            }
+
+            @Override
+                    public void run(File dir) throws Exception
+            {
+                CopyEngine copyEngine = new CopyEngine(numThreads, false);
+                copyEngine.copyDir(new File(dir, "tree"), new File(dir, "out"));
+                copyEngine.shutdown();
+            }
+        };
+    }
+
+    private static void createZip(File dir, TreeShape shape, double scale) throws IOException
+    {
+        File tree = new File(dir, "tree");
+        shape.create(tree, scale, 0);
+        TreeShape.zip(tree, new File(dir, "tree.zip"));
+        FileUtil.deleteFolder(tree);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Checks ManifestRewriter against manifests laid out in the ways that the
+ * text scan has to cope with. Run it after changing the rewriter:
+ *
+ *   java -cp "out:libs/*" org.openftc.ManifestRewriterCheck
+ */
+public class ManifestRewriterCheck
+{
+    private static final String NS = "xmlns:android=\"" + ManifestRewriter.ANDROID_NS + "\"";
+
+    private static class Case
+    {
+        final String name;
+        final String input;
+        final String expected;
+        final List<String> removed;
+
+        Case(String name, String input, String expected, String... removed)
+        {
+            this.name = name;
+            this.input = input;
+            this.expected = expected;
+            this.removed = Arrays.asList(removed);
+        }
+    }
+
+    private static final Case[] CASES = {
+            new Case("prolog and comment before the root",
+                    "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<!-- c -->\n<manifest " + NS + " package=\"a\" android:versionCode=\"1\">\n  <uses-sdk android:minSdkVersion=\"19\"/>\n  <application />\n</manifest>\n",
+                    "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<!-- c -->\n<manifest " + NS + " package=\"a\">\n  <application />\n</manifest>\n",
+                    "android:versionCode", "<uses-sdk>"),
+            new Case("blank line before uses-sdk",
+                    "<?xml version=\"1.0\"?>\n<!-- c -->\n<manifest " + NS + " package=\"a\" android:versionCode=\"1\">\n\n  <uses-sdk android:minSdkVersion=\"19\"/>\n  <application />\n</manifest>\n",
+                    "<?xml version=\"1.0\"?>\n<!-- c -->\n<manifest " + NS + " package=\"a\">\n\n  <application />\n</manifest>\n",
+                    "android:versionCode", "<uses-sdk>"),
+            new Case("CRLF line endings",
+                    "<?xml version=\"1.0\"?>\r\n<manifest " + NS + "\r\n    package=\"a\"\r\n    android:versionCode=\"1\"\r\n    android:versionName=\"1.0\">\r\n    <uses-sdk\r\n        android:minSdkVersion=\"19\" />\r\n    <application />\r\n</manifest>\r\n",
+                    "<?xml version=\"1.0\"?>\r\n<manifest " + NS + "\r\n    package=\"a\">\r\n    <application />\r\n</manifest>\r\n",
+                    "android:versionCode", "android:versionName", "<uses-sdk>"),
+            new Case("uses-sdk with an end tag and a comment inside",
+                    "<manifest " + NS + " package=\"a\">\n  <uses-sdk android:minSdkVersion=\"19\">\n    <!-- </uses-sdk> -->\n  </uses-sdk>\n  <application/>\n</manifest>",
+                    "<manifest " + NS + " package=\"a\">\n  <application/>\n</manifest>",
+                    "<uses-sdk>"),
+            new Case("doctype, other prefix and quotes containing '>'",
+                    "<!DOCTYPE manifest [ <!ENTITY x \"<y>\"> ]>\n<manifest xmlns:a=\"" + ManifestRewriter.ANDROID_NS + "\" xmlns:b=\"urn:b\" b:versionCode='2' a:label='a > b' a:versionName='1.0'>\n  <application><uses-sdk/></application>\n</manifest>\n",
+                    "<!DOCTYPE manifest [ <!ENTITY x \"<y>\"> ]>\n<manifest xmlns:a=\"" + ManifestRewriter.ANDROID_NS + "\" xmlns:b=\"urn:b\" b:versionCode='2' a:label='a > b'>\n  <application><uses-sdk/></application>\n</manifest>\n",
+                    "a:versionName"),
+            new Case("nothing to remove",
+                    "<manifest " + NS + " package=\"a\">\n  <application />\n</manifest>\n",
+                    "<manifest " + NS + " package=\"a\">\n  <application />\n</manifest>\n"),
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        int failures = 0;
+
+        for(Case c : CASES)
+        {
+            ManifestRewriter.Result result = ManifestRewriter.rewrite(c.input);
+
+            if(result.content.equals(c.expected) && result.removed.equals(c.removed))
+            {
+                System.out.println("OK    " + c.name);
+            }
+            else
+            {
+                System.out.println("FAIL  " + c.name);
+                System.out.println("  expected " + c.removed + ":\n" + c.expected);
+                System.out.println("  got " + result.removed + ":\n" + result.content);
+                failures++;
+            }
+        }
+
+        try
+        {
+            ManifestRewriter.rewrite("<manifest " + NS + " android:versionCode=\"1\">");
+            System.out.println("FAIL  malformed manifest was accepted");
+            failures++;
+        }
+        catch (IOException e)
+        {
+            System.out.println("OK    malformed manifest is rejected");
+        }
+
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Generates fake stock SDKs, laid out the way preliminaryCheckNewStockDir()
+ * expects, along with a matching fake merge directory, so that the updater
+ * can be benchmarked offline at any scale.
+ *
+ * Several versions of the SDK can be generated. In each version after the
+ * first, every file changes with the given probability, so that both
+ * incremental and full merges can be measured:
+ *
+ *     <out>/merge          the merge directory skeleton
+ *     <out>/stock-v1       the first version of the stock SDK
+ *     <out>/stock-v2       ...
+ */
+public class StockSdkGenerator
+{
+    @Parameter(names = "-h", help = true, description = "Print help")
+    private boolean help;
+
+    @Parameter(names = {"-o", "--out"}, description = "The directory to generate into", required = true)
+    private String out;
+
+    @Parameter(names = "--source-files", description = "The total number of Java source files across all modules")
+    private int sourceFiles = 5000;
+
+    @Parameter(names = "--res-files", description = "The total number of resource files across all modules")
+    private int resFiles = 2000;
+
+    @Parameter(names = "--native-lib-bytes", description = "The total size of the native libs (in the Vision module)")
+    private long nativeLibBytes = 64L * 1024 * 1024;
+
+    @Parameter(names = "--versions", description = "The number of versions of the stock SDK to generate")
+    private int versions = 2;
+
+    @Parameter(names = "--changed-fraction", description = "The probability of each file changing between versions")
+    private double changedFraction = 0.05;
+
+    @Parameter(names = "--seed", description = "The seed for the generated content")
+    private long seed = 0;
+
+    private static final int MAX_NATIVE_LIB_SIZE = 64 * 1024 * 1024;
+    private static final int SOURCE_FILE_SIZE = 6 * 1024;
+
+    private final byte[] buffer = new byte[1024 * 1024];
+
+    public static void main(String[] args) throws IOException
+    {
+        StockSdkGenerator instance = new StockSdkGenerator();
+
+        JCommander jCommander =
+                JCommander.newBuilder()
+                        .addObject(instance)
+                        .programName("java org.openftc.StockSdkGenerator")
+                        .build();
+
+        jCommander.parse(args);
+
+        if(instance.help)
+        {
+            jCommander.usage();
+            return;
+        }
+
+        instance.generate();
+    }
+
+    private void generate() throws IOException
+    {
+        generateMergeDir(new File(out, "merge"));
+
+        for(int version = 1; version <= versions; version++)
+        {
+            System.out.println("Generating stock SDK version " + version);
+            generateStockDir(new File(out, "stock-v" + version), version);
+        }
+    }
+
+    private void generateMergeDir(File mergeDir) throws IOException
+    {
+        StringBuilder versionNumbers = new StringBuilder();
+
+        for(Updater.Module module : Updater.Module.values())
+        {
+            File srcMain = new File(mergeDir, module.name + "/src/main");
+            mkdirs(new File(srcMain, "java"));
+            mkdirs(new File(srcMain, "res"));
+            mkdirs(new File(mergeDir, module.name + "/libs"));
+
+            write(new File(mergeDir, module.name + "/build.gradle"),
+                    "android {\n    defaultConfig {\n        versionCode 1\n        versionName \"0.0\"\n    }\n}\n");
+
+            if(module.isPackagedInArchive)
+            {
+                versionNumbers.append(module.name).append("VersionCode=1\n");
+                versionNumbers.append(module.name).append("VersionName=0.0\n");
+            }
+        }
+
+        write(new File(mergeDir, "versionNumbers.properties"), versionNumbers.toString());
+    }
+
+    private void generateStockDir(File stockDir, int version) throws IOException
+    {
+        File libs = new File(stockDir, "libs");
+        mkdirs(libs);
+
+        int numArchivedModules = 0;
+        for(Updater.Module module : Updater.Module.values())
+        {
+            if(module.isPackagedInArchive)
+            {
+                numArchivedModules++;
+            }
+        }
+
+        int moduleNum = 0;
+
+        for(Updater.Module module : Updater.Module.values())
+        {
+            if(!module.isPackagedInArchive)
+            {
+                generateFtcRobotController(new File(stockDir, module.name), version);
+                continue;
+            }
+
+            int firstSource = sourceFiles * moduleNum / numArchivedModules;
+            int lastSource = sourceFiles * (moduleNum + 1) / numArchivedModules;
+            int firstRes = resFiles * moduleNum / numArchivedModules;
+            int lastRes = resFiles * (moduleNum + 1) / numArchivedModules;
+
+            try (ZipOutputStream zip = newZip(new File(libs, module.name + "-sources.jar")))
+            {
+                putEntry(zip, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n".getBytes(StandardCharsets.UTF_8));
+
+                for(int i = firstSource; i < lastSource; i++)
+                {
+                    String pkg = "com/qualcomm/" + module.name.toLowerCase() + "/p" + (i % 40);
+                    putEntry(zip, pkg + "/Class" + i + ".java", sourceFile(pkg, i, revisionOf(i, version)));
+                }
+            }
+
+            try (ZipOutputStream zip = newZip(new File(libs, module.name + ".aar")))
+            {
+                putEntry(zip, "AndroidManifest.xml", manifest(module, version));
+                putEntry(zip, "classes.jar", new byte[1024]);
+
+                for(int i = firstRes; i < lastRes; i++)
+                {
+                    putEntry(zip, "res/values-v" + (i % 30) + "/values" + i + ".xml", resourceFile(i, revisionOf(sourceFiles + i, version)));
+                }
+
+                putEntry(zip, "assets/" + module.name + ".txt", ("Asset of " + module.name + "\r\n").getBytes(StandardCharsets.UTF_8));
+
+                if(module == Updater.Module.VISION)
+                {
+                    putNativeLibs(zip, version);
+                }
+            }
+
+            moduleNum++;
+        }
+    }
+
+    private void generateFtcRobotController(File root, int version) throws IOException
+    {
+        File srcMain = new File(root, "src/main");
+
+        for(int i = 0; i < 20; i++)
+        {
+            File file = new File(srcMain, "java/org/firstinspires/ftc/robotcontroller/Class" + i + ".java");
+            mkdirs(file.getParentFile());
+
+            try (OutputStream out = new FileOutputStream(file))
+            {
+                out.write(sourceFile("org/firstinspires/ftc/robotcontroller", i, revisionOf(-1 - i, version)));
+            }
+        }
+
+        mkdirs(new File(srcMain, "res/values"));
+        write(new File(srcMain, "res/values/strings.xml"), "<resources>\r\n</resources>\r\n");
+        write(new File(srcMain, "AndroidManifest.xml"), new String(manifest(Updater.Module.FTCROBOTCONTROLLER, version), StandardCharsets.UTF_8));
+        mkdirs(new File(root, "libs"));
+    }
+
+    private void putNativeLibs(ZipOutputStream zip, int version) throws IOException
+    {
+        long remaining = nativeLibBytes;
+        int libNum = 0;
+
+        while (remaining > 0)
+        {
+            long size = Math.min(remaining, MAX_NATIVE_LIB_SIZE);
+            Random random = new Random(seed * 31 + libNum * 7919L + revisionOf(-1000 - libNum, version));
+
+            zip.putNextEntry(new ZipEntry("jni/arm64-v8a/libvision" + libNum + ".so"));
+
+            for(long written = 0; written < size; written += buffer.length)
+            {
+                int chunk = (int) Math.min(buffer.length, size - written);
+                random.nextBytes(buffer);
+                zip.write(buffer, 0, chunk);
+            }
+
+            zip.closeEntry();
+
+            remaining -= size;
+            libNum++;
+        }
+    }
+
+    /*
+     * How many times the given file has changed as of the given version
+     */
+    private int revisionOf(int fileNum, int version)
+    {
+        int revision = 0;
+
+        for(int v = 2; v <= version; v++)
+        {
+            if(new Random(seed * 1000003 + fileNum * 31L + v).nextDouble() < changedFraction)
+            {
+                revision++;
+            }
+        }
+
+        return revision;
+    }
+
+    private byte[] sourceFile(String pkg, int fileNum, int revision)
+    {
+        StringBuilder builder = new StringBuilder(SOURCE_FILE_SIZE + 128);
+        builder.append("package ").append(pkg.replace('/', '.')).append(";\r\n\r\n");
+        builder.append("public class Class").append(fileNum).append("\r\n{\r\n");
+
+        for(int line = 0; builder.length() < SOURCE_FILE_SIZE; line++)
+        {
+            builder.append("    int field").append(line).append(" = ").append(fileNum * 31 + revision * 7 + line).append(";\r\n");
+        }
+
+        return builder.append("}\r\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] resourceFile(int fileNum, int revision)
+    {
+        return ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n<resources>\r\n"
+                + "    <string name=\"string" + fileNum + "\">Value " + fileNum + "." + revision + "</string>\r\n"
+                + "</resources>\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] manifest(Updater.Module module, int version)
+    {
+        return ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n"
+                + "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\r\n"
+                + "    package=\"com.qualcomm." + module.name.toLowerCase() + "\"\r\n"
+                + "    android:versionCode=\"" + version + "\"\r\n"
+                + "    android:versionName=\"" + version + ".0\" >\r\n\r\n"
+                + "    <uses-sdk\r\n"
+                + "        android:minSdkVersion=\"19\"\r\n"
+                + "        android:targetSdkVersion=\"26\" />\r\n\r\n"
+                + "    <application />\r\n\r\n"
+                + "</manifest>\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ZipOutputStream newZip(File file) throws IOException
+    {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        zip.setLevel(Deflater.BEST_SPEED);
+        return zip;
+    }
+
+    private static void putEntry(ZipOutputStream zip, String name, byte[] content) throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static void write(File file, String content) throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException
+    {
+        if(!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Cannot create folder " + dir);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * The shapes of tree the benchmarks are run against, roughly modelled on
+ * what the updater deals with: the res/ and java/ trees (many small files),
+ * libs/ and jniLibs/ (a few large binaries), and deeply nested packages.
+ */
+enum TreeShape
+{
+    MANY_SMALL (5000, 2 * 1024,          50,  2),
+    FEW_LARGE  (8,    32 * 1024 * 1024,  8,   1),
+    DEEP       (2000, 4 * 1024,          5,   40);
+
+    final int numFiles;
+    final int fileSize;
+    final int filesPerDir;
+    final int depth;
+
+    TreeShape(int numFiles, int fileSize, int filesPerDir, int depth)
+    {
+        this.numFiles = numFiles;
+        this.fileSize = fileSize;
+        this.filesPerDir = filesPerDir;
+        this.depth = depth;
+    }
+
+    long totalBytes(double scale)
+    {
+        return (long) scaledNumFiles(scale) * fileSize;
+    }
+
+    int scaledNumFiles(double scale)
+    {
+        return Math.max(1, (int) (numFiles * scale));
+    }
+
+    /*
+     * Writes the tree under root. The content is half text, half random
+     * bytes, so that it neither compresses away nor is pure noise.
+     */
+    void create(File root, double scale, long seed) throws IOException
+    {
+        Random random = new Random(seed);
+        byte[] content = new byte[fileSize];
+
+        for(int i = 0; i < scaledNumFiles(scale); i++)
+        {
+            File file = new File(root, relativePathOf(i));
+            file.getParentFile().mkdirs();
+
+            fill(content, random);
+
+            try (OutputStream out = new FileOutputStream(file))
+            {
+                out.write(content);
+            }
+        }
+    }
+
+    /*
+     * Zips up a tree created by create(), as an archive to extract from
+     */
+    static void zip(final File root, File zip) throws IOException
+    {
+        try (final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip)))
+        {
+            final Path rootPath = root.toPath();
+
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    out.putNextEntry(new ZipEntry(rootPath.relativize(file).toString().replace(File.separatorChar, '/')));
+                    Files.copy(file, out);
+                    out.closeEntry();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    String relativePathOf(int fileNum)
+    {
+        StringBuilder builder = new StringBuilder();
+        int dirNum = fileNum / filesPerDir;
+
+        for(int level = 0; level < depth; level++)
+        {
+            builder.append(level == depth - 1 ? "d" + dirNum : "level" + level).append('/');
+        }
+
+        return builder.append("File").append(fileNum).append(".java").toString();
+    }
+
+    static void fill(byte[] content, Random random)
+    {
+        int half = content.length / 2;
+
+        for(int i = 0; i < half; i++)
+        {
+            content[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+        }
+
+        for(int i = half; i < content.length; i += 4096)
+        {
+            byte[] chunk = new byte[Math.min(4096, content.length - i)];
+            random.nextBytes(chunk);
+            System.arraycopy(chunk, 0, content, i, chunk.length);
+        }
+    }
+}
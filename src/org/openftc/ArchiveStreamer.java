@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Streams the entries of a module archive straight to their final location,
+ * instead of extracting the whole archive to a temporary folder first.
+ */
+class ArchiveStreamer
+{
+    interface Destination
+    {
+        File fileFor(Updater.ModuleItem item, String relativePath);
+    }
+
+    static class Result
+    {
+        long files;
+        long bytesRead;
+        long bytesWritten;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static Result stream(File archive, Updater.Archive archiveType, Destination destination, EntryWriter writer, ProgressRenderer.Task progress) throws IOException
+    {
+        Result result = new Result();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Set<File> createdDirs = new HashSet<>();
+
+        try (ZipFile zipFile = new ZipFile(archive))
+        {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+
+                if(entry.isDirectory())
+                {
+                    continue;
+                }
+
+                Updater.ModuleItem item = Updater.ModuleItem.forArchiveEntry(archiveType, entry.getName());
+
+                if(item == null)
+                {
+                    continue;
+                }
+
+                String relativePath = relativePathInItem(item, entry.getName());
+                File dest = destination.fileFor(item, relativePath);
+                File parent = dest.getParentFile();
+
+                if(createdDirs.add(parent) && !parent.isDirectory() && !parent.mkdirs())
+                {
+                    throw new IOException("Cannot create folder " + parent);
+                }
+
+                long written;
+
+                try (InputStream in = zipFile.getInputStream(entry))
+                {
+                    written = writer.write(item, relativePath, in, dest, buffer);
+                }
+
+                result.bytesWritten += written;
+                progress.add(1, written);
+
+                result.bytesRead += entry.getCompressedSize();
+                result.files++;
+            }
+        }
+
+        return result;
+    }
+
+    static String relativePathInItem(Updater.ModuleItem item, String entryName) throws IOException
+    {
+        String relativePath;
+
+        if(item.archiveType == Updater.Archive.SOURCE_JAR)
+        {
+            relativePath = entryName; //just in root dir
+        }
+        else if(entryName.equals(item.archiveName))
+        {
+            return "";
+        }
+        else
+        {
+            relativePath = entryName.substring(item.archiveName.length() + 1);
+        }
+
+        // Once normalized, a path that stays inside the item's folder is relative, does not start with '..' and is not the folder itself
+        Path normalized = Paths.get(relativePath).normalize();
+
+        if(normalized.isAbsolute() || normalized.startsWith("..") || normalized.toString().isEmpty())
+        {
+            throw new IOException("Refusing to extract entry outside of its folder: " + entryName);
+        }
+
+        return relativePath;
+    }
+}
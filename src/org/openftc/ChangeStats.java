@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counts the files added, changed and deleted, and the lines inserted and
+ * deleted in text files, per module and per module item. The counts are
+ * taken by whoever writes the files, as they are written, so no pass over
+ * the tree is needed afterwards.
+ */
+class ChangeStats
+{
+    static class Counts
+    {
+        final String module;
+        final String item;
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger changed = new AtomicInteger();
+        final AtomicInteger deleted = new AtomicInteger();
+        final AtomicLong insertions = new AtomicLong();
+        final AtomicLong deletions = new AtomicLong();
+
+        Counts(String module, String item)
+        {
+            this.module = module;
+            this.item = item;
+        }
+
+        void fileAdded(String name, byte[] content)
+        {
+            added.incrementAndGet();
+
+            if(content != null && LineEndings.isText(name, content))
+            {
+                insertions.addAndGet(LineDiff.countLines(content));
+            }
+        }
+
+        void fileChanged(String name, byte[] oldContent, byte[] newContent)
+        {
+            changed.incrementAndGet();
+
+            if(oldContent != null && newContent != null && LineEndings.isText(name, oldContent) && LineEndings.isText(name, newContent))
+            {
+                LineDiff.Counts counts = LineDiff.count(oldContent, newContent);
+                insertions.addAndGet(counts.insertions);
+                deletions.addAndGet(counts.deletions);
+            }
+        }
+
+        void fileDeleted(String name, byte[] content)
+        {
+            deleted.incrementAndGet();
+
+            if(content != null && LineEndings.isText(name, content))
+            {
+                deletions.addAndGet(LineDiff.countLines(content));
+            }
+        }
+
+        int files()
+        {
+            return added.get() + changed.get() + deleted.get();
+        }
+
+        long lines()
+        {
+            return insertions.get() + deletions.get();
+        }
+    }
+
+    private final Map<String, Counts> counts = new ConcurrentHashMap<>();
+
+    Counts countsFor(String module, String item)
+    {
+        return counts.computeIfAbsent(module + "|" + item, key -> new Counts(module, item));
+    }
+
+    /*
+     * The items with the most changed lines come first, then those with the
+     * most changed files
+     */
+    List<Counts> getSortedCounts()
+    {
+        List<Counts> sorted = new ArrayList<>();
+
+        for(Counts itemCounts : counts.values())
+        {
+            if(itemCounts.files() > 0)
+            {
+                sorted.add(itemCounts);
+            }
+        }
+
+        sorted.sort(Comparator.comparingLong(Counts::lines).reversed()
+                .thenComparing(Comparator.comparingInt(Counts::files).reversed())
+                .thenComparing(c -> c.module + "|" + c.item));
+
+        return sorted;
+    }
+
+    void printTable()
+    {
+        List<Counts> sorted = getSortedCounts();
+
+        if(sorted.isEmpty())
+        {
+            System.out.println("No files were added, changed or deleted");
+            return;
+        }
+
+        String format = "%-20s %-20s %7s %7s %7s %9s %9s";
+        System.out.println(String.format(format, "Module", "Item", "Added", "Changed", "Deleted", "+Lines", "-Lines"));
+
+        Counts total = new Counts(null, null);
+
+        for(Counts c : sorted)
+        {
+            System.out.println(String.format(format, c.module, c.item, c.added, c.changed, c.deleted, c.insertions, c.deletions));
+            total.added.addAndGet(c.added.get());
+            total.changed.addAndGet(c.changed.get());
+            total.deleted.addAndGet(c.deleted.get());
+            total.insertions.addAndGet(c.insertions.get());
+            total.deletions.addAndGet(c.deletions.get());
+        }
+
+        System.out.println(String.format(format, "Total", "", total.added, total.changed, total.deleted, total.insertions, total.deletions));
+    }
+
+    void write(File file) throws IOException
+    {
+        List<Counts> sorted = getSortedCounts();
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)))
+        {
+            out.println("{");
+            out.println("  \"version\": 1,");
+            out.println("  \"items\": [");
+
+            for(int i = 0; i < sorted.size(); i++)
+            {
+                Counts c = sorted.get(i);
+                out.println("    {\"module\": " + StepReport.quote(c.module) + ", \"item\": " + StepReport.quote(c.item)
+                        + ", \"added\": " + c.added + ", \"changed\": " + c.changed + ", \"deleted\": " + c.deleted
+                        + ", \"insertions\": " + c.insertions + ", \"deletions\": " + c.deletions + "}"
+                        + (i + 1 < sorted.size() ? "," : ""));
+            }
+
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+}
@@ -21,65 +21,264 @@
 
 package org.openftc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
 public class ConsoleStatusManager
 {
+    private static final Object CONSOLE_LOCK = new Object();
+    private static final ProgressRenderer RENDERER = new ProgressRenderer(CONSOLE_LOCK, System.out);
+    private static final String SPACES = new String(new char[256]).replace('\0', ' ');
     private int lengthOfLastStepMsg = 0;
-    private static final int STD_TERMINAL_COLUMNS = 80;
+    private final ByteArrayOutputStream buffer;
+    private final PrintStream out;
+    private final StepReport report;
+    private String module;
+    private StepReport.Step currentStep;
+    private ProgressRenderer.Task progress;
+
+    ConsoleStatusManager()
+    {
+        this(false, null);
+    }
+
+    /*
+     * A buffered instance holds all of its output until flush() is
+     * called, so that the output of modules being processed concurrently
+     * is printed as one group per module rather than interleaved.
+     */
+    ConsoleStatusManager(boolean buffered, StepReport report)
+    {
+        this.report = report;
+
+        if(buffered)
+        {
+            buffer = new ByteArrayOutputStream();
+            out = new PrintStream(buffer, true);
+        }
+        else
+        {
+            buffer = null;
+            out = System.out;
+        }
+    }
 
     void fail()
     {
-        System.out.print((char)27 + "[31m"); //red
-        System.out.println(rightAlignResult("[FAIL]"));
-        System.out.print((char)27 + "[0m"); //end red
+        printResult("31", "[FAIL]"); //red
+        finishStep("FAIL");
 
+        flush();
         System.exit(1);
     }
 
     void fail(Exception e)
     {
-        System.out.print((char)27 + "[31m"); //red
-        System.out.println(rightAlignResult("[FAIL]"));
-        System.out.print((char)27 + "[0m"); //end red
+        printResult("31", "[FAIL]"); //red
+        finishStep("FAIL");
 
-        System.out.println("Stacktrace:");
+        synchronized (CONSOLE_LOCK)
+        {
+            out.println("Stacktrace:");
 
-        e.printStackTrace();
+            e.printStackTrace(out);
+        }
 
+        flush();
         System.exit(1);
     }
 
     void ok()
     {
-        System.out.print((char)27 + "[32m"); //green
-        System.out.println(rightAlignResult("[OK]"));
-        System.out.print((char)27 + "[0m"); //end green
+        printResult("32", "[OK]"); //green
+        finishStep("OK");
     }
 
     void na()
     {
-        System.out.print((char)27 + "[33m"); //yellow
-        System.out.println(rightAlignResult("[N/A]"));
-        System.out.print((char)27 + "[0m"); //end yellow
+        printResult("33", "[N/A]"); //yellow
+        finishStep("N/A");
     }
 
-    String rightAlignResult(String result)
+    void na(String reason)
     {
-        StringBuilder builder = new StringBuilder();
+        na();
+        detail(reason);
+    }
 
-        for(int i = lengthOfLastStepMsg; i < STD_TERMINAL_COLUMNS-result.length(); i++)
-        {
-            builder.append(" ");
-        }
+    /*
+     * For steps that completed but left something to be done by hand
+     */
+    void warn(String reason)
+    {
+        printResult("33", "[WARN]"); //yellow
+        finishStep("WARN");
+        detail(reason);
+    }
 
-        builder.append(result);
+    /*
+     * Right aligns the result against the width of the terminal, padding
+     * from a shared run of spaces rather than building a new string
+     */
+    private void printResult(String color, String result)
+    {
+        int padding = Math.min(RENDERER.getColumns() - result.length() - lengthOfLastStepMsg, SPACES.length());
 
-        return builder.toString();
+        synchronized (CONSOLE_LOCK)
+        {
+            beginWrite();
+            out.print((char)27 + "[" + color + "m");
+            out.append(SPACES, 0, Math.max(padding, 0));
+            out.println(result);
+            out.print((char)27 + "[0m");
+            endWrite(0);
+        }
     }
 
     void stepMsg(String msg)
     {
+        stepMsg(msg, null);
+    }
+
+    void stepMsg(String msg, Updater.ModuleItem item)
+    {
+        if(report != null)
+        {
+            currentStep = new StepReport.Step(module, item != null ? item.stdName : null, msg);
+            currentStep.startNanos = System.nanoTime();
+        }
+
+        if(progress != null)
+        {
+            RENDERER.end(progress);
+        }
+
+        progress = RENDERER.begin(module != null ? module + ": " + msg : msg);
+
         msg = "> " + msg + "...";
-        System.out.print(msg);
+
+        synchronized (CONSOLE_LOCK)
+        {
+            beginWrite();
+            out.print(msg);
+            endWrite(msg.length());
+        }
+
         lengthOfLastStepMsg = msg.length();
     }
+
+    /*
+     * The counters of the step in progress, for the threads doing its work
+     * to bump as they go. Outside of a step, the counters are not shown.
+     */
+    ProgressRenderer.Task progress()
+    {
+        return progress != null ? progress : new ProgressRenderer.Task("");
+    }
+
+    /*
+     * Attributes I/O to the step in progress
+     */
+    void recordIo(long bytesRead, long bytesWritten, long files)
+    {
+        if(currentStep != null)
+        {
+            currentStep.bytesRead += bytesRead;
+            currentStep.bytesWritten += bytesWritten;
+            currentStep.files += files;
+        }
+    }
+
+    /*
+     * Steps started between these two calls are attributed to the module
+     */
+    void beginModule(String module)
+    {
+        this.module = module;
+    }
+
+    void endModule()
+    {
+        this.module = null;
+    }
+
+    private void finishStep(String result)
+    {
+        if(progress != null)
+        {
+            RENDERER.end(progress);
+            progress = null;
+        }
+
+        if(currentStep != null)
+        {
+            currentStep.result = result;
+            currentStep.millis = (System.nanoTime() - currentStep.startNanos) / 1e6;
+            report.add(currentStep);
+            currentStep = null;
+        }
+    }
+
+    void detail(String msg)
+    {
+        synchronized (CONSOLE_LOCK)
+        {
+            beginWrite();
+            out.println("    " + msg);
+            endWrite(0);
+        }
+    }
+
+    void banner(String msg)
+    {
+        synchronized (CONSOLE_LOCK)
+        {
+            beginWrite();
+            out.print((char)27 + "[47m");
+            out.print((char)27 + "[34m");
+            out.println();
+            out.println("===============================================================");
+            out.println("= " + msg);
+            out.println("===============================================================");
+            out.print((char)27 + "[0m");
+            endWrite(0);
+        }
+    }
+
+    /*
+     * Output that goes straight to the console has to clear the progress
+     * region first. Buffered output only reaches the console in flush().
+     */
+    private void beginWrite()
+    {
+        if(buffer == null)
+        {
+            RENDERER.clear();
+        }
+    }
+
+    private void endWrite(int cursorColumn)
+    {
+        if(buffer == null)
+        {
+            RENDERER.setCursorColumn(cursorColumn);
+        }
+    }
+
+    void flush()
+    {
+        if(buffer == null)
+        {
+            return;
+        }
+
+        synchronized (CONSOLE_LOCK)
+        {
+            RENDERER.clear();
+            System.out.print(buffer.toString());
+            System.out.flush();
+            RENDERER.setCursorColumn(0);
+            buffer.reset();
+        }
+    }
 }
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copies directory trees by walking the source tree once, creating each
+ * destination folder once, and copying the files themselves on a bounded
+ * pool of threads so that the I/O for many small files overlaps.
+ *
+ * How a file is copied depends on its size. Small files go through
+ * Files.copy, medium files through a pool of direct buffers that are
+ * reused between copies, and large files through FileChannel.transferTo,
+ * which lets the kernel move the bytes without copying them into the JVM.
+ */
+class CopyEngine
+{
+    /*
+     * The ways in which the bytes of a file can end up at the destination
+     */
+    enum Route
+    {
+        LINK            ("linked"),
+        NORMALIZE       ("line endings converted"),
+        TRANSFORM       ("transformed"),
+        MEMORY          ("written from memory"),
+        FILES_COPY      ("Files.copy"),
+        DIRECT_BUFFER   ("direct buffers"),
+        TRANSFER        ("transferTo");
+
+        final String description;
+
+        Route(String description)
+        {
+            this.description = description;
+        }
+    }
+
+    static class Stats
+    {
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong linkedFiles = new AtomicLong();
+        final AtomicLong normalizedFiles = new AtomicLong();
+        final Map<Route, AtomicLong> routeBytes = new EnumMap<>(Route.class);
+
+        Stats()
+        {
+            for(Route route : Route.values())
+            {
+                routeBytes.put(route, new AtomicLong());
+            }
+        }
+
+        void add(Route route, long numBytes, boolean normalized)
+        {
+            files.incrementAndGet();
+            bytes.addAndGet(numBytes);
+            routeBytes.get(route).addAndGet(numBytes);
+
+            if(route == Route.LINK)
+            {
+                linkedFiles.incrementAndGet();
+            }
+
+            if(normalized)
+            {
+                normalizedFiles.incrementAndGet();
+            }
+        }
+
+        void add(Stats other)
+        {
+            files.addAndGet(other.files.get());
+            bytes.addAndGet(other.bytes.get());
+            linkedFiles.addAndGet(other.linkedFiles.get());
+            normalizedFiles.addAndGet(other.normalizedFiles.get());
+
+            for(Route route : Route.values())
+            {
+                routeBytes.get(route).addAndGet(other.routeBytes.get(route).get());
+            }
+        }
+
+        String describeRoutes()
+        {
+            StringBuilder builder = new StringBuilder();
+
+            for(Route route : Route.values())
+            {
+                builder.append(builder.length() == 0 ? "" : ", ");
+                builder.append(FileUtil.formatSize(routeBytes.get(route).get())).append(" ").append(route.description);
+            }
+
+            return builder.toString();
+        }
+
+        @Override
+        public String toString()
+        {
+            return files.get() + " files (" + FileUtil.formatSize(bytes.get()) + "), " + linkedFiles.get() + " of them linked rather than copied";
+        }
+    }
+
+    static final long DEFAULT_DIRECT_BUFFER_THRESHOLD = 64 * 1024;
+    static final long DEFAULT_TRANSFER_THRESHOLD = 4 * 1024 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+
+    private final ExecutorService executor;
+    private final Stats totals = new Stats();
+    private final boolean normalizeLineEndings;
+    private final long directBufferThreshold;
+    private final long transferThreshold;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+
+    CopyEngine(int numThreads, boolean normalizeLineEndings)
+    {
+        this(numThreads, normalizeLineEndings, DEFAULT_DIRECT_BUFFER_THRESHOLD, DEFAULT_TRANSFER_THRESHOLD);
+    }
+
+    /*
+     * Files of at least directBufferThreshold bytes are copied through the
+     * direct buffers, and files of at least transferThreshold bytes with
+     * transferTo
+     */
+    CopyEngine(int numThreads, boolean normalizeLineEndings, long directBufferThreshold, long transferThreshold)
+    {
+        this.normalizeLineEndings = normalizeLineEndings;
+        this.directBufferThreshold = directBufferThreshold;
+        this.transferThreshold = transferThreshold;
+
+        executor = Executors.newFixedThreadPool(Math.max(1, numThreads), r ->
+        {
+            Thread thread = new Thread(r, "CopyEngine");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    Stats copyDir(File in, File out) throws IOException
+    {
+        return copyDir(in, out, FileUtil.LinkMode.COPY);
+    }
+
+    Stats copyDir(File in, File out, final FileUtil.LinkMode linkMode) throws IOException
+    {
+        return copyDir(in, out, linkMode, new ProgressRenderer.Task(""));
+    }
+
+    /*
+     * The copies are also counted in progress as they complete
+     */
+    Stats copyDir(File in, File out, FileUtil.LinkMode linkMode, ProgressRenderer.Task progress) throws IOException
+    {
+        return copyDir(in, out, linkMode, progress, null, null);
+    }
+
+    /*
+     * Files of the item that the writer transforms are written through it
+     * rather than copied
+     */
+    Stats copyDir(File in, File out, final FileUtil.LinkMode linkMode, final ProgressRenderer.Task progress, final EntryWriter writer, final Updater.ModuleItem item) throws IOException
+    {
+        final Path inPath = in.toPath();
+        final Path outPath = out.toPath();
+        final Stats stats = new Stats();
+        final List<Future<?>> copies = new ArrayList<>();
+
+        Files.walkFileTree(inPath, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                Files.createDirectories(outPath.resolve(inPath.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+            {
+                final Path dest = outPath.resolve(inPath.relativize(file));
+                final String relativePath = writer != null ? inPath.relativize(file).toString().replace(File.separatorChar, '/') : null;
+                progress.expect(1, attrs.size());
+
+                copies.add(executor.submit(() ->
+                {
+                    if(writer != null && writer.transforms(item, relativePath))
+                    {
+                        try (InputStream fileIn = Files.newInputStream(file))
+                        {
+                            writer.write(item, relativePath, fileIn, dest.toFile(), buffers.get());
+                        }
+
+                        stats.add(Route.TRANSFORM, attrs.size(), false);
+                    }
+                    else if(linkMode == FileUtil.LinkMode.COPY && normalizeLineEndings && EntryWriter.mayNormalize(item, file.getFileName().toString()))
+                    {
+                        stats.add(Route.NORMALIZE, attrs.size(), copyNormalized(file, dest));
+                    }
+                    else if(linkMode != FileUtil.LinkMode.COPY && FileUtil.link(file, dest, linkMode) != FileUtil.LinkMode.COPY)
+                    {
+                        stats.add(Route.LINK, attrs.size(), false);
+                    }
+                    else
+                    {
+                        stats.add(copy(file, dest, attrs.size()), attrs.size(), false);
+                    }
+
+                    progress.add(1, attrs.size());
+                    return null;
+                }));
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        awaitCopies(copies, in);
+        totals.add(stats);
+        return stats;
+    }
+
+    /*
+     * Writes the files below the folder at path in a MemoryStage tree to
+     * out. They are written with the same routes as copyDir() uses, except
+     * that files written as is come straight from their direct buffers.
+     */
+    Stats copyTree(MemoryStage.Tree tree, String path, File out, ProgressRenderer.Task progress, final EntryWriter writer, final Updater.ModuleItem item) throws IOException
+    {
+        final Stats stats = new Stats();
+        final List<Future<?>> copies = new ArrayList<>();
+        Set<File> createdDirs = new HashSet<>();
+
+        for(Map.Entry<String, ByteBuffer> file : tree.below(path).entrySet())
+        {
+            final String relativePath = file.getKey().substring(path.length() + 1);
+            final ByteBuffer content = file.getValue().duplicate();
+            final File dest = new File(out, relativePath);
+            final long size = content.remaining();
+
+            File parent = dest.getParentFile();
+
+            if(createdDirs.add(parent) && !parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new IOException("Cannot create folder " + parent);
+            }
+
+            progress.expect(1, size);
+
+            copies.add(executor.submit(() ->
+            {
+                FileUtil.unlinkBeforeWrite(dest.toPath());
+
+                if(writer != null && writer.transforms(item, relativePath))
+                {
+                    writer.write(item, relativePath, new MemoryStage.BufferInputStream(content), dest, buffers.get());
+                    stats.add(Route.TRANSFORM, size, false);
+                }
+                else if(normalizeLineEndings && EntryWriter.mayNormalize(item, relativePath))
+                {
+                    try (OutputStream fileOut = new FileOutputStream(dest))
+                    {
+                        stats.add(Route.NORMALIZE, size, LineEndings.copy(relativePath, new MemoryStage.BufferInputStream(content), fileOut, buffers.get()));
+                    }
+                }
+                else
+                {
+                    try (FileChannel fileOut = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+                    {
+                        while (content.hasRemaining())
+                        {
+                            fileOut.write(content);
+                        }
+                    }
+
+                    stats.add(Route.MEMORY, size, false);
+                }
+
+                progress.add(1, size);
+                return null;
+            }));
+        }
+
+        awaitCopies(copies, path);
+        totals.add(stats);
+        return stats;
+    }
+
+    private static void awaitCopies(List<Future<?>> copies, Object source) throws IOException
+    {
+        try
+        {
+            for(Future<?> copy : copies)
+            {
+                copy.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying " + source, e);
+        }
+        catch (ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Route copy(Path file, Path dest, long size) throws IOException
+    {
+        if(size < directBufferThreshold)
+        {
+            Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+            return Route.FILES_COPY;
+        }
+
+        FileUtil.unlinkBeforeWrite(dest);
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if(size >= transferThreshold)
+            {
+                long position = 0;
+
+                while (position < size)
+                {
+                    long transferred = in.transferTo(position, size - position, out);
+
+                    /*
+                     * The file got shorter while it was being copied
+                     */
+                    if(transferred <= 0)
+                    {
+                        break;
+                    }
+
+                    position += transferred;
+                }
+
+                return Route.TRANSFER;
+            }
+
+            ByteBuffer buffer = directBuffers.poll();
+
+            if(buffer == null)
+            {
+                buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+            }
+
+            try
+            {
+                while (in.read(buffer) != -1)
+                {
+                    buffer.flip();
+
+                    while (buffer.hasRemaining())
+                    {
+                        out.write(buffer);
+                    }
+
+                    buffer.clear();
+                }
+            }
+            finally
+            {
+                buffer.clear();
+                directBuffers.add(buffer);
+            }
+
+            return Route.DIRECT_BUFFER;
+        }
+    }
+
+    private boolean copyNormalized(Path file, Path dest) throws IOException
+    {
+        FileUtil.unlinkBeforeWrite(dest);
+
+        try (InputStream in = Files.newInputStream(file); OutputStream out = Files.newOutputStream(dest))
+        {
+            return LineEndings.copy(file.getFileName().toString(), in, out, buffers.get());
+        }
+    }
+
+    Stats getTotals()
+    {
+        return totals;
+    }
+
+    void shutdown()
+    {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Writes the new files of a module to disk, applying on the way any changes
+ * that would otherwise have to be made by hand afterwards.
+ */
+class EntryWriter
+{
+    /*
+     * Shared by the writers of all modules
+     */
+    static class Summary
+    {
+        final Queue<String> rewrittenManifests = new ConcurrentLinkedQueue<>();
+        final AtomicInteger normalizedFiles = new AtomicInteger();
+        final AtomicInteger transformedFiles = new AtomicInteger();
+    }
+
+    private final Updater.Module module;
+    private final boolean rewriteManifests;
+    private final boolean normalizeLineEndings;
+    private final Summary summary;
+    private final SourceTransforms sourceTransforms;
+
+    EntryWriter(Updater.Module module, boolean rewriteManifests, boolean normalizeLineEndings, Summary summary)
+    {
+        this(module, rewriteManifests, normalizeLineEndings, summary, null);
+    }
+
+    /*
+     * The source transforms of the module, if any, are applied to its
+     * text files after their line endings have been converted
+     */
+    EntryWriter(Updater.Module module, boolean rewriteManifests, boolean normalizeLineEndings, Summary summary, SourceTransforms sourceTransforms)
+    {
+        this.module = module;
+        this.rewriteManifests = rewriteManifests;
+        this.normalizeLineEndings = normalizeLineEndings;
+        this.summary = summary;
+        this.sourceTransforms = sourceTransforms;
+    }
+
+    /*
+     * Whether the written content of an item can differ from the content
+     * that was read
+     */
+    boolean transforms(Updater.ModuleItem item, String relativePath)
+    {
+        return rewritesManifest(item) || normalizesLineEndings(item, relativePath) || appliesSourceTransforms(item, relativePath);
+    }
+
+    /*
+     * Content produced by render(), which is only counted in the summary
+     * once written() is called for it, since callers that compare it with
+     * an existing file may not write it at all
+     */
+    static class Rendered
+    {
+        final byte[] content;
+        private final List<String> removedFromManifest;
+        private final boolean normalized;
+        private final boolean transformed;
+
+        private Rendered(byte[] content, List<String> removedFromManifest, boolean normalized, boolean transformed)
+        {
+            this.content = content;
+            this.removedFromManifest = removedFromManifest;
+            this.normalized = normalized;
+            this.transformed = transformed;
+        }
+    }
+
+    Rendered render(Updater.ModuleItem item, String relativePath, InputStream in) throws IOException
+    {
+        byte[] content = readAll(in);
+        List<String> removedFromManifest = Collections.emptyList();
+        boolean normalized = false;
+        boolean transformed = false;
+
+        if(rewritesManifest(item))
+        {
+            ManifestRewriter.Result result = ManifestRewriter.rewrite(new String(content, StandardCharsets.UTF_8));
+            removedFromManifest = result.removed;
+            content = result.content.getBytes(StandardCharsets.UTF_8);
+        }
+
+        if(normalizesLineEndings(item, relativePath))
+        {
+            byte[] normalizedContent = LineEndings.normalize(nameOf(item, relativePath), content);
+
+            if(normalizedContent != content)
+            {
+                normalized = true;
+                content = normalizedContent;
+            }
+        }
+
+        if(appliesSourceTransforms(item, relativePath) && LineEndings.isText(nameOf(item, relativePath), content))
+        {
+            String original = new String(content, StandardCharsets.UTF_8);
+            String transformedContent = original;
+
+            for(SourceTransform transform : sourceTransforms.forItem(module, item))
+            {
+                transformedContent = transform.apply(relativePath, transformedContent);
+            }
+
+            if(!transformedContent.equals(original))
+            {
+                transformed = true;
+                content = transformedContent.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        return new Rendered(content, removedFromManifest, normalized, transformed);
+    }
+
+    /*
+     * Counts what was done to content that has been written
+     */
+    void written(Rendered rendered)
+    {
+        if(!rendered.removedFromManifest.isEmpty())
+        {
+            summary.rewrittenManifests.add(module.name + ": removed " + String.join(", ", rendered.removedFromManifest));
+        }
+
+        if(rendered.normalized)
+        {
+            summary.normalizedFiles.incrementAndGet();
+        }
+
+        if(rendered.transformed)
+        {
+            summary.transformedFiles.incrementAndGet();
+        }
+    }
+
+    long write(Updater.ModuleItem item, String relativePath, InputStream in, File dest, byte[] buffer) throws IOException
+    {
+        FileUtil.unlinkBeforeWrite(dest.toPath());
+
+        if(rewritesManifest(item) || appliesSourceTransforms(item, relativePath))
+        {
+            Rendered rendered = render(item, relativePath, in);
+            Files.write(dest.toPath(), rendered.content);
+            written(rendered);
+            return rendered.content.length;
+        }
+        else if(normalizesLineEndings(item, relativePath))
+        {
+            try (OutputStream out = new FileOutputStream(dest))
+            {
+                if(LineEndings.copy(nameOf(item, relativePath), in, out, buffer))
+                {
+                    summary.normalizedFiles.incrementAndGet();
+                }
+            }
+
+            return dest.length();
+        }
+
+        return FileUtil.writeStream(in, dest, buffer);
+    }
+
+    private boolean rewritesManifest(Updater.ModuleItem item)
+    {
+        return rewriteManifests && module.isPackagedInArchive && item == Updater.ModuleItem.MANIFEST;
+    }
+
+    private boolean normalizesLineEndings(Updater.ModuleItem item, String relativePath)
+    {
+        return normalizeLineEndings && mayNormalize(item, nameOf(item, relativePath));
+    }
+
+    /*
+     * Libs and native libs are always binary, whatever their names say.
+     * Shared with CopyEngine, so that files are routed the same way however
+     * they are written; the item is null for plain folder copies.
+     */
+    static boolean mayNormalize(Updater.ModuleItem item, String name)
+    {
+        return item != Updater.ModuleItem.LIBS
+                && item != Updater.ModuleItem.NATIVE_LIBS
+                && LineEndings.mayBeText(name);
+    }
+
+    private boolean appliesSourceTransforms(Updater.ModuleItem item, String relativePath)
+    {
+        return sourceTransforms != null
+                && !sourceTransforms.forItem(module, item).isEmpty()
+                && LineEndings.mayBeText(nameOf(item, relativePath));
+    }
+
+    /*
+     * Single-file items such as the manifest have an empty relative path
+     */
+    private static String nameOf(Updater.ModuleItem item, String relativePath)
+    {
+        return relativePath.isEmpty() ? item.stdName : relativePath;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+}
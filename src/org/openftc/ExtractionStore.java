@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+
+/*
+ * A store of extracted archive entries, addressed by their content, that is
+ * kept between runs. Most entries are identical from one SDK version to the
+ * next, so once an entry is in the store, extracting it again only means
+ * linking (or copying) the stored file instead of inflating it.
+ *
+ * Entries are addressed by what the central directory says about them
+ * (CRC32, size and compressed size) together with their path, so that a
+ * hit costs no inflation at all, and two different entries would need the
+ * same path as well as a colliding CRC32 to be mixed up. Objects are hard
+ * linked wherever possible, which is safe because every writer deletes a
+ * file before writing it (see FileUtil.unlinkBeforeWrite) rather than
+ * truncating it in place. The CRC32 is checked when an object is added and
+ * when it is materialized, so that a damaged object is dropped instead of
+ * handed out. The store is kept below a size cap by evicting the entries
+ * that were least recently used.
+ */
+class ExtractionStore
+{
+    private static final String OBJECTS_FOLDER_NAME = "objects";
+    private static final String LAST_USED_FILE_NAME = "lastUsed.properties";
+
+    private final File objectsDir;
+    private final File lastUsedFile;
+    private final long maxBytes;
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong hitBytes = new AtomicLong();
+    final AtomicLong added = new AtomicLong();
+    final AtomicLong addedBytes = new AtomicLong();
+
+    private ExtractionStore(File dir, long maxBytes)
+    {
+        this.objectsDir = new File(dir, OBJECTS_FOLDER_NAME);
+        this.lastUsedFile = new File(dir, LAST_USED_FILE_NAME);
+        this.maxBytes = maxBytes;
+    }
+
+    static ExtractionStore open(File dir, long maxBytes) throws IOException
+    {
+        ExtractionStore store = new ExtractionStore(dir, maxBytes);
+        Files.createDirectories(store.objectsDir.toPath());
+
+        if(store.lastUsedFile.exists())
+        {
+            Properties properties = new Properties();
+
+            try (InputStream in = new FileInputStream(store.lastUsedFile))
+            {
+                properties.load(in);
+            }
+
+            for(String key : properties.stringPropertyNames())
+            {
+                try
+                {
+                    store.lastUsed.put(key, Long.parseLong(properties.getProperty(key)));
+                }
+                catch (NumberFormatException ignored)
+                {
+
+                }
+            }
+        }
+
+        return store;
+    }
+
+    /*
+     * Returns null if the central directory does not describe the entry
+     * well enough to address it
+     */
+    static String keyFor(ZipEntry entry)
+    {
+        if(entry.getCrc() == -1 || entry.getSize() == -1 || entry.getCompressedSize() == -1)
+        {
+            return null;
+        }
+
+        String pathHash = FingerprintIndex.fingerprintStrings(entry.getName()).substring(0, 16);
+        return String.format("%08x-%d-%d-%s", entry.getCrc(), entry.getSize(), entry.getCompressedSize(), pathHash);
+    }
+
+    /*
+     * Places the stored entry at dest, and returns false if the store does
+     * not have it
+     */
+    boolean materialize(String key, long size, File dest) throws IOException
+    {
+        File object = objectFor(key);
+
+        if(!object.isFile() || object.length() != size)
+        {
+            return false;
+        }
+
+        if(FileUtil.crc32(object, new byte[64 * 1024]) != crcOf(key))
+        {
+            Files.deleteIfExists(object.toPath());
+            lastUsed.remove(key);
+            return false;
+        }
+
+        Path destPath = dest.toPath();
+        Files.deleteIfExists(destPath);
+
+        try
+        {
+            Files.createLink(destPath, object.toPath());
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            Files.copy(object.toPath(), destPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        lastUsed.put(key, System.currentTimeMillis());
+        hits.incrementAndGet();
+        hitBytes.addAndGet(size);
+        return true;
+    }
+
+    /*
+     * Adds a freshly extracted entry, whose content had the given CRC32,
+     * unless that does not match the CRC32 of its key. The object is
+     * created under a unique name and then renamed, so that concurrent runs
+     * and threads never see a partial object.
+     */
+    void add(String key, File extracted, long crc) throws IOException
+    {
+        File object = objectFor(key);
+
+        if(object.isFile() || crc != crcOf(key))
+        {
+            return;
+        }
+
+        Files.createDirectories(object.getParentFile().toPath());
+        Path tmp = Files.createTempFile(object.getParentFile().toPath(), key, ".tmp");
+
+        try
+        {
+            Files.delete(tmp);
+
+            try
+            {
+                Files.createLink(tmp, extracted.toPath());
+            }
+            catch (IOException | UnsupportedOperationException e)
+            {
+                Files.copy(extracted.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            Files.move(tmp, object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            lastUsed.put(key, System.currentTimeMillis());
+            added.incrementAndGet();
+            addedBytes.addAndGet(object.length());
+        }
+        catch (FileAlreadyExistsException ignored)
+        {
+
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /*
+     * Deletes the least recently used objects until the store is below its
+     * size cap, and saves when every object was last used. Returns the
+     * number of objects that were evicted.
+     */
+    int evictAndSave() throws IOException
+    {
+        List<File> objects = new ArrayList<>();
+        long totalBytes = 0;
+        File[] subDirs = objectsDir.listFiles();
+
+        if(subDirs != null)
+        {
+            for(File subDir : subDirs)
+            {
+                File[] files = subDir.listFiles();
+
+                if(files == null)
+                {
+                    continue;
+                }
+
+                for(File file : files)
+                {
+                    objects.add(file);
+                    totalBytes += file.length();
+                }
+            }
+        }
+
+        objects.sort(Comparator.comparingLong(this::lastUsedOf));
+        int evicted = 0;
+
+        for(File object : objects)
+        {
+            if(totalBytes <= maxBytes)
+            {
+                break;
+            }
+
+            totalBytes -= object.length();
+            FileUtil.deleteFile(object);
+            lastUsed.remove(object.getName());
+            evicted++;
+        }
+
+        Properties properties = new Properties();
+
+        for(File object : objects)
+        {
+            Long time = lastUsed.get(object.getName());
+
+            if(time != null)
+            {
+                properties.setProperty(object.getName(), Long.toString(time));
+            }
+        }
+
+        try (OutputStream out = new FileOutputStream(lastUsedFile))
+        {
+            properties.store(out, "ExtractedRC_Updater extraction store, do not edit");
+        }
+
+        return evicted;
+    }
+
+    /*
+     * Objects that were never recorded (e.g. because a run was killed) are
+     * evicted first
+     */
+    private long lastUsedOf(File object)
+    {
+        Long time = lastUsed.get(object.getName());
+        return time != null ? time : 0;
+    }
+
+    private static long crcOf(String key)
+    {
+        return Long.parseLong(key.substring(0, key.indexOf('-')), 16);
+    }
+
+    /*
+     * Objects are spread over subfolders so that no folder gets too large
+     */
+    private File objectFor(String key)
+    {
+        return new File(new File(objectsDir, key.substring(0, 2)), key);
+    }
+}
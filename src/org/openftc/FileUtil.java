@@ -22,18 +22,44 @@
 package org.openftc;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DecimalFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 class FileUtil
 {
-    static void deleteAllThingsInFolder(File folder) throws FileSystemException
+    enum LinkMode
     {
+        COPY,
+        HARDLINK,
+        REFLINK,
+        AUTO
+    }
+
+    /*
+     * What AUTO resolved to for each pair of source and destination
+     * filesystems, so that detection only happens once per pair
+     */
+    private static final Map<String, LinkMode> autoLinkModes = new ConcurrentHashMap<>();
+
+    /*
+     * Returns the number of files and folders deleted
+     */
+    static int deleteAllThingsInFolder(File folder) throws FileSystemException
+    {
+        int numDeleted = 0;
         File[] files = folder.listFiles();
 
         if (files != null)
@@ -42,42 +68,192 @@ class FileUtil
             {
                 if (f.isDirectory())
                 {
-                    deleteFolder(f);
+                    numDeleted += deleteFolder(f);
                 }
                 else
                 {
-                    if(!f.delete())
-                    {
-                        throw new FileSystemException("Cannot delete file");
-                    }
+                    deleteFile(f);
+                    numDeleted++;
                 }
             }
         }
+
+        return numDeleted;
+    }
+
+    static int deleteFolder(File folder) throws FileSystemException
+    {
+        int numDeleted = deleteAllThingsInFolder(folder);
+        deleteFile(folder);
+        return numDeleted + 1;
+    }
+
+    static String formatSize(long bytes)
+    {
+        if(bytes < 1024)
+        {
+            return bytes + " B";
+        }
+        else if(bytes < 1024 * 1024)
+        {
+            return new DecimalFormat("#.##").format(bytes / 1024d) + " KB";
+        }
+
+        return new DecimalFormat("#.##").format(bytes / (1024d * 1024d)) + " MB";
+    }
+
+    static void deleteFile(File file) throws FileSystemException
+    {
+        if(!file.delete())
+        {
+            throw new FileSystemException(file.getAbsolutePath(), null, file.isDirectory() ? "Cannot delete folder" : "Cannot delete file");
+        }
+    }
+
+    /*
+     * Deletes dest if it exists, so that writing it creates a new file
+     * instead of truncating one that may be hard linked from elsewhere,
+     * such as the extraction store or the stock SDK
+     */
+    static void unlinkBeforeWrite(Path dest) throws IOException
+    {
+        Files.deleteIfExists(dest);
+    }
+
+    static long writeStream(InputStream in, File dest, byte[] buffer) throws IOException
+    {
+        long numBytes = 0;
+        unlinkBeforeWrite(dest.toPath());
+
+        try (OutputStream out = new FileOutputStream(dest))
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+                numBytes += read;
+            }
+        }
+
+        return numBytes;
+    }
+
+    static long crc32(File file, byte[] buffer) throws IOException
+    {
+        try (InputStream in = new FileInputStream(file))
+        {
+            return crc32(in, buffer);
+        }
     }
 
-    static void deleteFolder(File folder) throws FileSystemException
+    static long crc32(InputStream in, byte[] buffer) throws IOException
     {
-        deleteAllThingsInFolder(folder);
+        CRC32 crc = new CRC32();
 
-        if(!folder.delete())
+        int read;
+        while ((read = in.read(buffer)) != -1)
         {
-            throw new FileSystemException("Cannot delete folder");
+            crc.update(buffer, 0, read);
         }
+
+        return crc.getValue();
     }
 
-    static void recursiveCopyDir(String in, String out) throws IOException
+    /*
+     * Places src at dest by creating a hard link or a copy-on-write clone
+     * (reflink). AUTO uses the best of these that the filesystems support.
+     * Returns the mode that was actually used, or COPY if nothing was
+     * linked, in which case the caller still has to copy the bytes.
+     */
+    static LinkMode link(Path src, Path dest, LinkMode mode) throws IOException
     {
-        for(File f : new File(in).listFiles())
+        if(mode == LinkMode.AUTO)
         {
-            if(f.isDirectory())
+            String key = Files.getFileStore(src).name() + "->" + Files.getFileStore(dest.getParent()).name();
+            LinkMode detected = autoLinkModes.get(key);
+
+            if(detected != null)
+            {
+                return link(src, dest, detected);
+            }
+
+            for(LinkMode candidate : new LinkMode[] {LinkMode.REFLINK, LinkMode.HARDLINK})
+            {
+                try
+                {
+                    link(src, dest, candidate);
+                    autoLinkModes.put(key, candidate);
+                    return candidate;
+                }
+                catch (IOException | UnsupportedOperationException ignored)
+                {
+
+                }
+            }
+
+            autoLinkModes.put(key, LinkMode.COPY);
+            return LinkMode.COPY;
+        }
+
+        switch (mode)
+        {
+            case HARDLINK:
+            {
+                Files.deleteIfExists(dest);
+                Files.createLink(dest, src);
+                break;
+            }
+
+            case REFLINK:
             {
-                recursiveCopyDir(f.getAbsolutePath(), out + File.separator + f.getName());
+                reflink(src, dest);
+                break;
             }
-            else
+
+            default:
             {
-                new File(out + File.separator + f.getName()).getParentFile().mkdirs();
-                Files.copy(Paths.get(f.getAbsolutePath()), Paths.get(out + File.separator + f.getName()), StandardCopyOption.REPLACE_EXISTING);
+                break;
             }
         }
+
+        return mode;
+    }
+
+    /*
+     * Java has no API for copy-on-write clones, so this relies on GNU cp,
+     * which fails rather than falling back when asked for --reflink=always
+     */
+    private static void reflink(Path src, Path dest) throws IOException
+    {
+        if(!System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("linux"))
+        {
+            throw new UnsupportedOperationException("Reflinks are only supported on Linux");
+        }
+
+        Process process = new ProcessBuilder("cp", "--reflink=always", src.toString(), dest.toString())
+                .redirectErrorStream(true)
+                .start();
+
+        try (InputStream in = process.getInputStream())
+        {
+            while (in.read() != -1);
+
+            if(process.waitFor() != 0)
+            {
+                throw new IOException("Cannot reflink " + src + " to " + dest);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reflinking " + src, e);
+        }
+    }
+
+    static long crc32(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
     }
 }
\ No newline at end of file
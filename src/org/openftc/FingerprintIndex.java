@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Remembers, for every module, a fingerprint of the archives it was last
+ * merged from and a fingerprint of the tree that merge produced, so that a
+ * module whose inputs and outputs both still match can be skipped.
+ *
+ * Archives are fingerprinted from their central directory (the name, size
+ * and CRC32 of every entry), which is cheap to read and changes whenever
+ * the content of any entry does. Trees are fingerprinted from the path,
+ * size and modification time of every file.
+ */
+class FingerprintIndex
+{
+    static final String FILE_NAME = ".updaterIndex.properties";
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    private FingerprintIndex(File file)
+    {
+        this.file = file;
+    }
+
+    static FingerprintIndex load(File file) throws IOException
+    {
+        FingerprintIndex index = new FingerprintIndex(file);
+
+        if(file.exists())
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                index.properties.load(in);
+            }
+        }
+
+        return index;
+    }
+
+    synchronized boolean matches(String module, String inputs, String tree)
+    {
+        return inputs.equals(properties.getProperty(module + ".inputs")) && tree.equals(properties.getProperty(module + ".tree"));
+    }
+
+    synchronized void put(String module, String inputs, String tree)
+    {
+        properties.setProperty(module + ".inputs", inputs);
+        properties.setProperty(module + ".tree", tree);
+    }
+
+    synchronized void save() throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            properties.store(out, "ExtractedRC_Updater fingerprint index, do not edit");
+        }
+    }
+
+    static String fingerprintArchives(File... archives) throws IOException
+    {
+        MessageDigest digest = newDigest();
+
+        for(File archive : archives)
+        {
+            try (ZipFile zipFile = new ZipFile(archive))
+            {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+                while (entries.hasMoreElements())
+                {
+                    ZipEntry entry = entries.nextElement();
+                    update(digest, entry.getName() + '|' + entry.getSize() + '|' + entry.getCrc() + '\n');
+                }
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static String fingerprintTrees(File... roots) throws IOException
+    {
+        MessageDigest digest = newDigest();
+
+        for(File root : roots)
+        {
+            update(digest, "#" + root.getName() + '\n');
+
+            if(root.isFile())
+            {
+                update(digest, root.length() + "|" + root.lastModified() + '\n');
+                continue;
+            }
+            else if(!root.isDirectory())
+            {
+                continue;
+            }
+
+            final Path rootPath = root.toPath();
+            final List<String> lines = new ArrayList<>();
+
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    lines.add(rootPath.relativize(file) + "|" + attrs.size() + '|' + attrs.lastModifiedTime().toMillis() + '\n');
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            // The order files are visited in is not guaranteed to be stable
+            Collections.sort(lines);
+
+            for(String line : lines)
+            {
+                update(digest, line);
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static String fingerprintStrings(String... strings)
+    {
+        MessageDigest digest = newDigest();
+
+        for(String string : strings)
+        {
+            update(digest, string + '\n');
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-1
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s)
+    {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for(byte b : bytes)
+        {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+}
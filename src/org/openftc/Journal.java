@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Records every step that completed, together with a fingerprint of the
+ * inputs it worked from, so that a run that failed part of the way through
+ * can be resumed where it stopped instead of starting over. Each record is
+ * appended and flushed as soon as its step completes, since a failed step
+ * ends the process.
+ *
+ * The first line holds a signature of the options that decide what the
+ * steps write. A journal written with other options is not resumed.
+ */
+class Journal
+{
+    static final String FILE_NAME = ".updaterJournal";
+    private static final String SIGNATURE_PREFIX = "#signature ";
+
+    private final File file;
+    private final Set<String> done = new HashSet<>();
+    private Writer writer;
+
+    private Journal(File file)
+    {
+        this.file = file;
+    }
+
+    /*
+     * Unless resuming, or if the journal was written with another
+     * signature, it is started afresh
+     */
+    static Journal open(File file, String signature, boolean resume) throws IOException
+    {
+        Journal journal = new Journal(file);
+
+        if(resume && file.isFile())
+        {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+
+            if(!lines.isEmpty() && lines.get(0).equals(SIGNATURE_PREFIX + signature))
+            {
+                journal.done.addAll(lines.subList(1, lines.size()));
+            }
+        }
+
+        boolean append = !journal.done.isEmpty();
+        journal.writer = new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8);
+
+        if(!append)
+        {
+            journal.writer.write(SIGNATURE_PREFIX + signature + '\n');
+            journal.writer.flush();
+        }
+
+        return journal;
+    }
+
+    /*
+     * Whether there is anything to resume
+     */
+    synchronized boolean isResuming()
+    {
+        return !done.isEmpty();
+    }
+
+    synchronized boolean isDone(String scope, String step, String fingerprint)
+    {
+        return done.contains(record(scope, step, fingerprint));
+    }
+
+    synchronized int countDone(String scope, String fingerprint)
+    {
+        int count = 0;
+
+        for(String record : done)
+        {
+            if(record.startsWith(scope + '|') && record.endsWith('|' + fingerprint))
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    synchronized void recordDone(String scope, String step, String fingerprint) throws IOException
+    {
+        String record = record(scope, step, fingerprint);
+
+        if(done.add(record))
+        {
+            writer.write(record + '\n');
+            writer.flush();
+        }
+    }
+
+    /*
+     * Once the whole run has completed there is nothing left to resume
+     */
+    synchronized void delete() throws IOException
+    {
+        writer.close();
+        FileUtil.deleteFile(file);
+    }
+
+    private static String record(String scope, String step, String fingerprint)
+    {
+        return scope + '|' + step + '|' + fingerprint;
+    }
+}
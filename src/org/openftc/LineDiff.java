@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Counts the lines inserted and deleted between two versions of a text
+ * file, the same way 'git diff --stat' does. Only the length of the
+ * shortest edit script is needed, not the script itself, so Myers'
+ * algorithm runs in linear space. If the files differ so much that the
+ * diff would get expensive, the counts fall back to comparing the lines as
+ * multisets, which ignores lines that merely moved.
+ */
+class LineDiff
+{
+    static class Counts
+    {
+        final int insertions;
+        final int deletions;
+
+        Counts(int insertions, int deletions)
+        {
+            this.insertions = insertions;
+            this.deletions = deletions;
+        }
+    }
+
+    private static final int MAX_EDIT_DISTANCE = 4096;
+
+    static Counts count(byte[] oldContent, byte[] newContent)
+    {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = toLineIds(oldContent, ids);
+        int[] b = toLineIds(newContent, ids);
+
+        /*
+         * Most changes are local, so the common start and end are skipped
+         * before running the diff on what is left
+         */
+        int start = 0;
+        while (start < a.length && start < b.length && a[start] == b[start])
+        {
+            start++;
+        }
+
+        int endA = a.length;
+        int endB = b.length;
+        while (endA > start && endB > start && a[endA - 1] == b[endB - 1])
+        {
+            endA--;
+            endB--;
+        }
+
+        a = Arrays.copyOfRange(a, start, endA);
+        b = Arrays.copyOfRange(b, start, endB);
+
+        int distance = editDistance(a, b);
+
+        if(distance < 0)
+        {
+            return countAsMultisets(a, b, ids.size());
+        }
+
+        int common = (a.length + b.length - distance) / 2;
+        return new Counts(b.length - common, a.length - common);
+    }
+
+    static int countLines(byte[] content)
+    {
+        return toLines(content).size();
+    }
+
+    /*
+     * Returns the number of insertions plus deletions, or -1 if it exceeds
+     * MAX_EDIT_DISTANCE
+     */
+    private static int editDistance(int[] a, int[] b)
+    {
+        int n = a.length;
+        int m = b.length;
+        int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int[] v = new int[2 * max + 2];
+
+        for(int d = 0; d <= max; d++)
+        {
+            for(int k = -d; k <= d; k += 2)
+            {
+                int x;
+
+                if(k == -d || (k != d && v[max + k - 1] < v[max + k + 1]))
+                {
+                    x = v[max + k + 1];
+                }
+                else
+                {
+                    x = v[max + k - 1] + 1;
+                }
+
+                int y = x - k;
+
+                while (x < n && y < m && a[x] == b[y])
+                {
+                    x++;
+                    y++;
+                }
+
+                v[max + k] = x;
+
+                if(x >= n && y >= m)
+                {
+                    return d;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private static Counts countAsMultisets(int[] a, int[] b, int numIds)
+    {
+        int[] balance = new int[numIds];
+
+        for(int id : a)
+        {
+            balance[id]--;
+        }
+
+        for(int id : b)
+        {
+            balance[id]++;
+        }
+
+        int insertions = 0;
+        int deletions = 0;
+
+        for(int count : balance)
+        {
+            if(count > 0)
+            {
+                insertions += count;
+            }
+            else
+            {
+                deletions -= count;
+            }
+        }
+
+        return new Counts(insertions, deletions);
+    }
+
+    private static int[] toLineIds(byte[] content, Map<String, Integer> ids)
+    {
+        List<String> lines = toLines(content);
+        int[] lineIds = new int[lines.size()];
+
+        for(int i = 0; i < lineIds.length; i++)
+        {
+            Integer id = ids.get(lines.get(i));
+
+            if(id == null)
+            {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+
+            lineIds[i] = id;
+        }
+
+        return lineIds;
+    }
+
+    /*
+     * ISO-8859-1 maps every byte to one char, so lines compare exactly as
+     * their bytes do whatever the actual encoding is
+     */
+    private static List<String> toLines(byte[] content)
+    {
+        List<String> lines = new ArrayList<>();
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        int lineStart = 0;
+
+        for(int i = 0; i < text.length(); i++)
+        {
+            if(text.charAt(i) == '\n')
+            {
+                lines.add(text.substring(lineStart, i));
+                lineStart = i + 1;
+            }
+        }
+
+        if(lineStart < text.length())
+        {
+            lines.add(text.substring(lineStart));
+        }
+
+        return lines;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ * Converts CRLF line endings to LF while files are being written, so that
+ * the tree does not need to be reformatted afterwards. Whether a file is
+ * text is decided by its extension, or if the extension is not known, by
+ * whether the start of its content contains a NUL byte.
+ */
+class LineEndings
+{
+    private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "java", "kt", "xml", "txt", "properties", "gradle", "pro", "cfg", "json",
+            "html", "htm", "css", "js", "md", "csv", "c", "cpp", "h", "hpp", "mf"));
+
+    private static final Set<String> BINARY_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "webp", "bmp", "ico", "so", "jar", "aar", "zip",
+            "class", "dex", "bin", "tflite", "ogg", "mp3", "wav", "ttf", "otf"));
+
+    private static final int SNIFF_LENGTH = 8000;
+
+    /*
+     * Returns TRUE or FALSE if the extension says whether the file is text,
+     * or null if the content has to be looked at
+     */
+    static Boolean isTextByName(String name)
+    {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        int dot = fileName.lastIndexOf('.');
+
+        if(dot == -1)
+        {
+            return null;
+        }
+
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+
+        if(TEXT_EXTENSIONS.contains(extension))
+        {
+            return Boolean.TRUE;
+        }
+        else if(BINARY_EXTENSIONS.contains(extension))
+        {
+            return Boolean.FALSE;
+        }
+
+        return null;
+    }
+
+    static boolean mayBeText(String name)
+    {
+        return isTextByName(name) != Boolean.FALSE;
+    }
+
+    static boolean isText(String name, byte[] content)
+    {
+        Boolean text = isTextByName(name);
+        return text != null ? text : !containsNul(content, Math.min(content.length, SNIFF_LENGTH));
+    }
+
+    /*
+     * Copies in to out, converting line endings if the file is text. The
+     * conversion happens in place in the given buffer, so nothing is
+     * allocated per file. Returns whether any line endings were converted.
+     */
+    static boolean copy(String name, InputStream in, OutputStream out, byte[] buffer) throws IOException
+    {
+        Boolean text = isTextByName(name);
+        boolean converted = false;
+        boolean pendingCR = false;
+
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            if(text == null)
+            {
+                text = !containsNul(buffer, Math.min(read, SNIFF_LENGTH));
+            }
+
+            if(!text)
+            {
+                out.write(buffer, 0, read);
+                continue;
+            }
+
+            // A CR at the very end of the last chunk
+            if(pendingCR)
+            {
+                if(buffer[0] == '\n')
+                {
+                    converted = true;
+                }
+                else
+                {
+                    out.write('\r');
+                }
+
+                pendingCR = false;
+            }
+
+            int length = 0;
+
+            for(int i = 0; i < read; i++)
+            {
+                byte b = buffer[i];
+
+                if(b == '\r')
+                {
+                    if(i + 1 == read)
+                    {
+                        pendingCR = true;
+                        continue;
+                    }
+                    else if(buffer[i + 1] == '\n')
+                    {
+                        converted = true;
+                        continue;
+                    }
+                }
+
+                buffer[length++] = b;
+            }
+
+            out.write(buffer, 0, length);
+        }
+
+        if(pendingCR)
+        {
+            out.write('\r');
+        }
+
+        return converted;
+    }
+
+    /*
+     * Returns the content with its line endings converted, or the same
+     * array if nothing needed converting
+     */
+    static byte[] normalize(String name, byte[] content)
+    {
+        if(!isText(name, content))
+        {
+            return content;
+        }
+
+        int length = 0;
+        byte[] normalized = null;
+
+        for(int i = 0; i < content.length; i++)
+        {
+            if(content[i] == '\r' && i + 1 < content.length && content[i + 1] == '\n')
+            {
+                if(normalized == null)
+                {
+                    normalized = Arrays.copyOf(content, content.length);
+                    length = i;
+                }
+
+                continue;
+            }
+
+            if(normalized != null)
+            {
+                normalized[length] = content[i];
+            }
+
+            length++;
+        }
+
+        return normalized == null ? content : Arrays.copyOf(normalized, length);
+    }
+
+    private static boolean containsNul(byte[] bytes, int length)
+    {
+        for(int i = 0; i < length; i++)
+        {
+            if(bytes[i] == 0)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -25,8 +25,14 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class Main
 {
@@ -36,8 +42,92 @@ public class Main
     @Parameter(names = {"-m", "--existing-merge-dir"}, description = "The directory of the existing ExtractedRC project to merge into", required = true)
     private String existingMergeDir;
 
-    @Parameter(names = {"-s", "--new-stock-dir"}, description = "The directory of the new stock SDK to use for the merge", required = true)
-    private String newStockDir;
+    @Parameter(names = {"-s", "--new-stock-dir"}, description = "The directory of the new stock SDK to use for the merge. With --batch, several can be given, and they are applied in order", required = true)
+    private List<String> newStockDirs;
+
+    @Parameter(names = "--batch", description = "Do not prompt, and apply every --new-stock-dir in turn")
+    private boolean batch;
+
+    @Parameter(names = "--watch", description = "After the update, keep watching the libs and FtcRobotController folders of the (last) new stock directory, and update the modules that change")
+    private boolean watch;
+
+    @Parameter(names = "--debounce-ms", description = "How long --watch waits for the stock SDK to stop changing before updating")
+    private long debounceMillis = 1000;
+
+    @Parameter(names = "--hook", description = "A shell command to run in the merge directory after each stock SDK has been applied, e.g. to commit the changes")
+    private String hook;
+
+    @Parameter(names = {"-j", "--jobs"}, description = "The number of modules to process concurrently")
+    private int jobs = 1;
+
+    @Parameter(names = {"-d", "--direct"}, description = "Stream the archives straight into the merge directory instead of using a temporary folder")
+    private boolean direct;
+
+    @Parameter(names = "--sync", description = "Only write the files that changed and only delete the files that were removed, instead of replacing everything")
+    private boolean sync;
+
+    @Parameter(names = "--plan", description = "Only print the files that would be added, changed and removed, without changing anything")
+    private boolean plan;
+
+    @Parameter(names = "--transactional", description = "Build the new modules in a staging folder and only swap them in once all of them have succeeded")
+    private boolean transactional;
+
+    @Parameter(names = "--resume", description = "Continue an update that failed part of the way through, skipping the steps it completed and reusing its extractions")
+    private boolean resume;
+
+    @Parameter(names = "--skip-unchanged", description = "Skip modules whose archives and merged tree are unchanged since the last run")
+    private boolean skipUnchanged;
+
+    @Parameter(names = "--async-delete", description = "Move old files aside and delete them in the background")
+    private boolean asyncDelete;
+
+    @Parameter(names = "--copy-threads", description = "The number of threads used to copy files")
+    private int copyThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "--direct-buffer-threshold", description = "The size in bytes from which files are copied through pooled direct buffers")
+    private long directBufferThreshold = CopyEngine.DEFAULT_DIRECT_BUFFER_THRESHOLD;
+
+    @Parameter(names = "--transfer-threshold", description = "The size in bytes from which files are copied with FileChannel.transferTo")
+    private long transferThreshold = CopyEngine.DEFAULT_TRANSFER_THRESHOLD;
+
+    @Parameter(names = "--extract-threads", description = "The number of threads used to extract archives to the temporary directory")
+    private int extractThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "--memory-stage-mb", description = "Extract the archives of the modules into up to this much memory (in MB) instead of the temporary folder. Modules that do not fit are extracted to the temporary folder")
+    private long memoryStageMb = 0;
+
+    @Parameter(names = "--store", description = "A folder in which to keep extracted archive entries between runs, so that unchanged entries need not be extracted again")
+    private String store;
+
+    @Parameter(names = "--store-max-mb", description = "The size (in MB) above which the least recently used entries are evicted from --store")
+    private long storeMaxMb = 4096;
+
+    @Parameter(names = "--link-mode", description = "How to place libs and native libs: copy, hardlink, reflink, or auto")
+    private String linkMode = "copy";
+
+    @Parameter(names = "--keep-manifest-versions", description = "Do not remove the version code, version name, and 'uses-sdk' tag from library manifests")
+    private boolean keepManifestVersions;
+
+    @Parameter(names = "--transforms", description = "A file that lists the transforms (e.g. license headers or import fixes) to apply to the Java sources and resources of each module as they are written")
+    private String transforms;
+
+    @Parameter(names = "--keep-line-endings", description = "Do not convert CRLF line endings in text files to LF")
+    private boolean keepLineEndings;
+
+    @Parameter(names = "--keep-version-numbers", description = "Do not update the library versions in build.gradle and versionNumbers.properties")
+    private boolean keepVersionNumbers;
+
+    @Parameter(names = "--report", description = "Write the duration and I/O of every step to this JSON file")
+    private String report;
+
+    @Parameter(names = "--compare", description = "A report from a previous run (see --report) to compare the duration of every step against, printing the steps that got slower")
+    private String compare;
+
+    @Parameter(names = "--stats", description = "Write the files and lines added, changed and deleted in every module item to this JSON file, and print them as a table (requires --sync)")
+    private String stats;
+
+    @Parameter(names = "--regression-threshold", description = "How much slower (as a fraction) a step must get to be reported by --compare")
+    private double regressionThreshold = 0.2;
 
     public static void main(String[] args) throws IOException, NoSuchAlgorithmException
     {
@@ -61,14 +151,78 @@ public class Main
             }
             else
             {
-                System.out.println();
-                System.out.println("This script is intended to be used by the primary maintainer of ExtractedRC ONLY.");
-                System.out.println("Press Control-C to exit if you are just an OpenRC user.");
-                pause();
-                System.out.println("Please ensure that you have closed the project in Android Studio");
-                pause();
+                FileUtil.LinkMode linkMode = parseLinkMode(instance.linkMode);
+
+                if(!instance.batch && instance.newStockDirs.size() > 1)
+                {
+                    throw new ParameterException("Only --batch accepts more than one new stock directory");
+                }
+
+                if(instance.stats != null && !instance.sync)
+                {
+                    throw new ParameterException("--stats requires --sync, the only mode that sees the old and the new version of every file");
+                }
+
+                if(instance.transactional && instance.sync)
+                {
+                    throw new ParameterException("--transactional cannot be combined with --sync, which only writes the files that changed");
+                }
+
+                if(instance.memoryStageMb > 0 && (instance.direct || instance.sync))
+                {
+                    throw new ParameterException("--memory-stage-mb only applies to the temporary folder, which --direct and --sync do not use");
+                }
+
+                if(instance.transactional && instance.resume)
+                {
+                    throw new ParameterException("--resume cannot be combined with --transactional, which leaves nothing behind to resume when it fails");
+                }
 
-                new Updater(instance.existingMergeDir, instance.newStockDir).run();
+                /*
+                 * A plan does not touch the project, so there is no need to
+                 * stop and warn about it
+                 */
+                if(!instance.plan && !instance.batch)
+                {
+                    System.out.println();
+                    System.out.println("This script is intended to be used by the primary maintainer of ExtractedRC ONLY.");
+                    System.out.println("Press Control-C to exit if you are just an OpenRC user.");
+                    pause();
+                    System.out.println("Please ensure that you have closed the project in Android Studio");
+                    pause();
+                }
+
+                BatchState batchState = new BatchState();
+                String lastStockDir = instance.newStockDirs.get(instance.newStockDirs.size() - 1);
+
+                /*
+                 * Started before the first update, so that changes made while
+                 * it runs are not missed
+                 */
+                StockWatcher watcher = instance.watch ? new StockWatcher(lastStockDir, instance.debounceMillis) : null;
+
+                for(int i = 0; i < instance.newStockDirs.size(); i++)
+                {
+                    String stockDir = instance.newStockDirs.get(i);
+                    Updater updater = instance.newUpdater(stockDir, linkMode, batchState);
+
+                    /*
+                     * Only the first stock directory of a batch can be the
+                     * one whose update was interrupted
+                     */
+                    updater.setResume(instance.resume && i == 0);
+                    updater.run();
+
+                    if(instance.hook != null)
+                    {
+                        runHook(instance.hook, instance.existingMergeDir, stockDir, i + 1);
+                    }
+                }
+
+                if(watcher != null)
+                {
+                    instance.watch(watcher, lastStockDir, linkMode, batchState);
+                }
             }
         }
         catch (ParameterException e)
@@ -77,6 +231,136 @@ public class Main
         }
     }
 
+    private Updater newUpdater(String stockDir, FileUtil.LinkMode linkMode, BatchState batchState)
+    {
+        Updater updater = new Updater(existingMergeDir, stockDir);
+        updater.setJobs(jobs);
+        updater.setDirect(direct);
+        updater.setSync(sync);
+        updater.setSkipUnchanged(skipUnchanged);
+        updater.setPlan(plan);
+        updater.setTransactional(transactional);
+        updater.setAsyncDelete(asyncDelete);
+        updater.setCopyThreads(copyThreads);
+        updater.setExtractThreads(extractThreads);
+        updater.setCopyThresholds(directBufferThreshold, transferThreshold);
+        updater.setExtractionStore(store, storeMaxMb * 1024 * 1024);
+        updater.setMemoryStage(memoryStageMb * 1024 * 1024);
+        updater.setLinkMode(linkMode);
+        updater.setRewriteManifests(!keepManifestVersions);
+        updater.setNormalizeLineEndings(!keepLineEndings);
+        updater.setSourceTransforms(transforms);
+        updater.setUpdateVersions(!keepVersionNumbers);
+        updater.setReportPath(report);
+        updater.setStatsPath(stats);
+        updater.setCompare(compare, regressionThreshold);
+        updater.setBatchState(batchState);
+        return updater;
+    }
+
+    /*
+     * Runs until the process is killed. Every update shares the batch state,
+     * so the archives that did not change are not extracted again.
+     */
+    private void watch(StockWatcher watcher, String stockDir, FileUtil.LinkMode linkMode, BatchState batchState) throws IOException
+    {
+        int step = newStockDirs.size();
+
+        try
+        {
+            while (true)
+            {
+                System.out.println();
+                System.out.println("Watching '" + stockDir + "' for changes. Press Control-C to exit.");
+
+                Set<Updater.Module> modules = watcher.awaitChanges();
+                Updater updater = newUpdater(stockDir, linkMode, batchState);
+                updater.setModules(modules);
+                updater.run();
+
+                if(hook != null)
+                {
+                    runHook(hook, existingMergeDir, stockDir, ++step);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            watcher.close();
+        }
+    }
+
+    private static FileUtil.LinkMode parseLinkMode(String linkMode)
+    {
+        try
+        {
+            return FileUtil.LinkMode.valueOf(linkMode.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ParameterException("Invalid link mode '" + linkMode + "'");
+        }
+    }
+
+    /*
+     * The stock directory and the number of the step are passed to the hook
+     * in environment variables
+     */
+    private static void runHook(String hook, String mergeDir, String stockDir, int step)
+    {
+        ConsoleStatusManager csm = new ConsoleStatusManager();
+        csm.stepMsg("Running hook for '" + stockDir + "'");
+
+        boolean windows = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("windows");
+        ProcessBuilder builder = windows ? new ProcessBuilder("cmd", "/c", hook) : new ProcessBuilder("sh", "-c", hook);
+        builder.directory(new File(mergeDir));
+        builder.environment().put("EXTRACTEDRC_STOCK_DIR", new File(stockDir).getAbsolutePath());
+        builder.environment().put("EXTRACTEDRC_STEP", Integer.toString(step));
+        builder.redirectErrorStream(true);
+
+        try
+        {
+            Process process = builder.start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+            try (InputStream in = process.getInputStream())
+            {
+                byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = in.read(buffer)) != -1)
+                {
+                    output.write(buffer, 0, read);
+                }
+            }
+
+            int exitCode = process.waitFor();
+
+            if(exitCode != 0)
+            {
+                throw new IOException("The hook exited with code " + exitCode + ":\n" + output);
+            }
+
+            csm.ok();
+
+            for(String line : output.toString().split("\\r?\\n"))
+            {
+                if(!line.isEmpty())
+                {
+                    csm.detail(line);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
     private static void pause()
     {
         System.out.println("Press Enter to continue...");
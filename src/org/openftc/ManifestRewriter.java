@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Removes the version code, version name, and 'uses-sdk' tag from a library
+ * manifest, since for the libraries those come from build.gradle instead.
+ *
+ * What needs removing is found by scanning the tags of the original text,
+ * and the removal is done on that text, so that the formatting of
+ * everything else in the file is preserved exactly. The result is parsed
+ * again before it is used, to make sure that it is still well formed and
+ * that nothing was missed.
+ */
+class ManifestRewriter
+{
+    static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+    private static final List<String> REMOVED_ATTRIBUTES = Arrays.asList("versionCode", "versionName");
+    private static final String REMOVED_ELEMENT = "uses-sdk";
+
+    static class Result
+    {
+        final String content;
+        final List<String> removed;
+
+        Result(String content, List<String> removed)
+        {
+            this.content = content;
+            this.removed = removed;
+        }
+    }
+
+    private static class Range
+    {
+        final int start;
+        final int end;
+        final String replacement;
+
+        Range(int start, int end, String replacement)
+        {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+    }
+
+    private static class Attribute
+    {
+        final String name;
+        final String value;
+
+        // Includes the whitespace before the name
+        final int start;
+        final int end;
+
+        Attribute(String name, String value, int start, int end)
+        {
+            this.name = name;
+            this.value = value;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Tag
+    {
+        final String name;
+        final boolean closing;
+        final boolean selfClosing;
+        final List<Attribute> attributes;
+        final int start;
+        final int end;
+
+        Tag(String name, boolean closing, boolean selfClosing, List<Attribute> attributes, int start, int end)
+        {
+            this.name = name;
+            this.closing = closing;
+            this.selfClosing = selfClosing;
+            this.attributes = attributes;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    static Result rewrite(String manifest) throws IOException
+    {
+        checkWellFormed(manifest, "Cannot parse manifest");
+
+        List<String> removed = new ArrayList<>();
+        List<Range> ranges = new ArrayList<>();
+
+        int depth = 0;
+        int usesSdkStart = -1;
+        int position = 0;
+        Tag tag;
+
+        while ((tag = nextTag(manifest, position)) != null)
+        {
+            position = tag.end;
+
+            if(tag.closing)
+            {
+                if(depth == 2 && usesSdkStart != -1)
+                {
+                    ranges.add(wholeLines(manifest, usesSdkStart, tag.end));
+                    removed.add("<" + REMOVED_ELEMENT + ">");
+                    usesSdkStart = -1;
+                }
+
+                depth--;
+                continue;
+            }
+
+            int tagDepth = depth + 1;
+
+            if(tagDepth == 1 && localName(tag.name).equals("manifest"))
+            {
+                removeAttributes(tag, ranges, removed);
+            }
+            else if(tagDepth == 2 && localName(tag.name).equals(REMOVED_ELEMENT))
+            {
+                if(tag.selfClosing)
+                {
+                    ranges.add(wholeLines(manifest, tag.start, tag.end));
+                    removed.add("<" + REMOVED_ELEMENT + ">");
+                }
+                else
+                {
+                    usesSdkStart = tag.start;
+                }
+            }
+
+            if(!tag.selfClosing)
+            {
+                depth++;
+            }
+        }
+
+        String content = apply(manifest, ranges);
+
+        if(!ranges.isEmpty())
+        {
+            checkWellFormed(content, "Removing the version info from the manifest would not leave valid XML; use --keep-manifest-versions");
+            checkRemoved(content);
+        }
+
+        return new Result(content, removed);
+    }
+
+    /*
+     * Removes the version attributes from the root tag. Only the prefixes
+     * that the root tag binds to the Android namespace can be in effect on
+     * its attributes.
+     */
+    private static void removeAttributes(Tag root, List<Range> ranges, List<String> removed)
+    {
+        Set<String> androidPrefixes = new HashSet<>();
+
+        for(Attribute attribute : root.attributes)
+        {
+            if(attribute.name.startsWith("xmlns:") && attribute.value.equals(ANDROID_NS))
+            {
+                androidPrefixes.add(attribute.name.substring("xmlns:".length()));
+            }
+        }
+
+        for(Attribute attribute : root.attributes)
+        {
+            int colon = attribute.name.indexOf(':');
+
+            if(colon != -1
+                    && androidPrefixes.contains(attribute.name.substring(0, colon))
+                    && REMOVED_ATTRIBUTES.contains(attribute.name.substring(colon + 1)))
+            {
+                ranges.add(new Range(attribute.start, attribute.end, ""));
+                removed.add(attribute.name);
+            }
+        }
+    }
+
+    /*
+     * Returns the next start or end tag at or after position, skipping the
+     * XML declaration, processing instructions, comments, CDATA sections
+     * and the doctype, or null at the end of the text. Text content cannot
+     * contain a raw '<', so every '<' starts some kind of markup.
+     */
+    private static Tag nextTag(String text, int position) throws IOException
+    {
+        while (true)
+        {
+            int start = text.indexOf('<', position);
+
+            if(start == -1)
+            {
+                return null;
+            }
+
+            if(text.startsWith("<!--", start))
+            {
+                position = skipPast(text, start, "-->");
+            }
+            else if(text.startsWith("<![CDATA[", start))
+            {
+                position = skipPast(text, start, "]]>");
+            }
+            else if(text.startsWith("<?", start))
+            {
+                position = skipPast(text, start, "?>");
+            }
+            else if(text.startsWith("<!", start))
+            {
+                position = skipDoctype(text, start);
+            }
+            else
+            {
+                return readTag(text, start);
+            }
+        }
+    }
+
+    private static Tag readTag(String text, int start) throws IOException
+    {
+        boolean closing = text.startsWith("</", start);
+        int position = closing ? start + 2 : start + 1;
+
+        int nameEnd = skipName(text, position);
+        String name = text.substring(position, nameEnd);
+        position = nameEnd;
+
+        List<Attribute> attributes = new ArrayList<>();
+
+        while (true)
+        {
+            int attributeStart = position;
+            position = skipWhitespace(text, position);
+
+            if(position >= text.length())
+            {
+                throw new IOException("Unterminated tag <" + name + " in manifest");
+            }
+
+            char c = text.charAt(position);
+
+            if(c == '>')
+            {
+                return new Tag(name, closing, false, attributes, start, position + 1);
+            }
+            else if(c == '/' && text.startsWith("/>", position))
+            {
+                return new Tag(name, closing, true, attributes, start, position + 2);
+            }
+
+            int attributeNameEnd = skipName(text, position);
+            String attributeName = text.substring(position, attributeNameEnd);
+
+            position = skipWhitespace(text, attributeNameEnd);
+            if(attributeName.isEmpty() || position >= text.length() || text.charAt(position) != '=')
+            {
+                throw new IOException("Malformed attribute in tag <" + name + " of manifest");
+            }
+
+            position = skipWhitespace(text, position + 1);
+            if(position >= text.length() || (text.charAt(position) != '"' && text.charAt(position) != '\''))
+            {
+                throw new IOException("Unquoted attribute " + attributeName + " in manifest");
+            }
+
+            int valueEnd = text.indexOf(text.charAt(position), position + 1);
+            if(valueEnd == -1)
+            {
+                throw new IOException("Unterminated attribute " + attributeName + " in manifest");
+            }
+
+            attributes.add(new Attribute(attributeName, text.substring(position + 1, valueEnd), attributeStart, valueEnd + 1));
+            position = valueEnd + 1;
+        }
+    }
+
+    /*
+     * The doctype can contain an internal subset in brackets, with quoted
+     * strings that may contain '>'
+     */
+    private static int skipDoctype(String text, int start) throws IOException
+    {
+        int brackets = 0;
+
+        for(int i = start + 2; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if(c == '"' || c == '\'')
+            {
+                i = text.indexOf(c, i + 1);
+
+                if(i == -1)
+                {
+                    break;
+                }
+            }
+            else if(c == '[')
+            {
+                brackets++;
+            }
+            else if(c == ']')
+            {
+                brackets--;
+            }
+            else if(c == '>' && brackets == 0)
+            {
+                return i + 1;
+            }
+        }
+
+        throw new IOException("Unterminated doctype in manifest");
+    }
+
+    private static int skipPast(String text, int start, String terminator) throws IOException
+    {
+        int end = text.indexOf(terminator, start);
+
+        if(end == -1)
+        {
+            throw new IOException("Unterminated markup in manifest, expected " + terminator);
+        }
+
+        return end + terminator.length();
+    }
+
+    private static int skipName(String text, int position)
+    {
+        while (position < text.length())
+        {
+            char c = text.charAt(position);
+
+            if(Character.isWhitespace(c) || c == '=' || c == '>' || c == '/')
+            {
+                break;
+            }
+
+            position++;
+        }
+
+        return position;
+    }
+
+    private static int skipWhitespace(String text, int position)
+    {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+        {
+            position++;
+        }
+
+        return position;
+    }
+
+    private static void checkWellFormed(String manifest, String message) throws IOException
+    {
+        try
+        {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(manifest));
+
+            while (reader.hasNext())
+            {
+                reader.next();
+            }
+
+            reader.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(message, e);
+        }
+    }
+
+    /*
+     * Makes sure that the scan of the text found everything that the parser
+     * sees, e.g. if the manifest uses some construct that the scan does not
+     * understand
+     */
+    private static void checkRemoved(String content) throws IOException
+    {
+        try
+        {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(content));
+            int depth = 0;
+
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+
+                if(event == XMLStreamConstants.START_ELEMENT)
+                {
+                    depth++;
+
+                    boolean leftOver = depth == 2 && reader.getLocalName().equals(REMOVED_ELEMENT);
+
+                    for(String attribute : REMOVED_ATTRIBUTES)
+                    {
+                        leftOver |= depth == 1 && reader.getAttributeValue(ANDROID_NS, attribute) != null;
+                    }
+
+                    if(leftOver)
+                    {
+                        throw new IOException("Could not remove all of the version info from the manifest; use --keep-manifest-versions");
+                    }
+                }
+                else if(event == XMLStreamConstants.END_ELEMENT)
+                {
+                    depth--;
+                }
+            }
+
+            reader.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException("Cannot parse rewritten manifest", e);
+        }
+    }
+
+    /*
+     * Widens a range to cover the whole lines it is on, if nothing else is
+     * on those lines, so that no blank line is left behind
+     */
+    private static Range wholeLines(String text, int start, int end)
+    {
+        int lineStart = start;
+        while (lineStart > 0 && (text.charAt(lineStart - 1) == ' ' || text.charAt(lineStart - 1) == '\t'))
+        {
+            lineStart--;
+        }
+
+        int lineEnd = end;
+        while (lineEnd < text.length() && (text.charAt(lineEnd) == ' ' || text.charAt(lineEnd) == '\t'))
+        {
+            lineEnd++;
+        }
+
+        boolean startsLine = lineStart == 0 || text.charAt(lineStart - 1) == '\n';
+        boolean endsLine = lineEnd == text.length() || text.charAt(lineEnd) == '\r' || text.charAt(lineEnd) == '\n';
+
+        if(!(startsLine && endsLine))
+        {
+            return new Range(start, end, "");
+        }
+
+        if(text.startsWith("\r\n", lineEnd))
+        {
+            lineEnd += 2;
+        }
+        else if(lineEnd < text.length())
+        {
+            lineEnd++;
+        }
+
+        return new Range(lineStart, lineEnd, "");
+    }
+
+    private static String apply(String text, List<Range> ranges)
+    {
+        Collections.sort(ranges, (a, b) -> Integer.compare(a.start, b.start));
+
+        StringBuilder builder = new StringBuilder(text.length());
+        int position = 0;
+
+        for(Range range : ranges)
+        {
+            builder.append(text, position, range.start);
+            builder.append(range.replacement);
+            position = range.end;
+        }
+
+        builder.append(text, position, text.length());
+
+        return builder.toString();
+    }
+
+    private static String localName(String qualifiedName)
+    {
+        return qualifiedName.substring(qualifiedName.indexOf(':') + 1);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Holds the extracted archives of modules in direct buffers instead of in
+ * the temporary folder, since they are only ever read once, by the copy
+ * steps. Each module reserves the uncompressed size of its archives up
+ * front, and a module that does not fit under the cap is extracted to disk
+ * as usual.
+ *
+ * Files are keyed by their path relative to the temporary folder, with '/'
+ * as the separator, so that the same item paths work for both.
+ */
+class MemoryStage
+{
+    class Tree
+    {
+        private final NavigableMap<String, ByteBuffer> files = new ConcurrentSkipListMap<>();
+        private final long reservedBytes;
+
+        private Tree(long reservedBytes)
+        {
+            this.reservedBytes = reservedBytes;
+        }
+
+        void put(String path, ByteBuffer content)
+        {
+            files.put(path, content);
+        }
+
+        /*
+         * Whether there is a file at path or any file below it
+         */
+        boolean exists(String path)
+        {
+            return files.containsKey(path) || !below(path).isEmpty();
+        }
+
+        /*
+         * The files below the folder at path, keyed by their full path
+         */
+        NavigableMap<String, ByteBuffer> below(String path)
+        {
+            // '0' is the character after '/'
+            return files.subMap(path + '/', true, path + '0', false);
+        }
+
+        void removeBelow(String path)
+        {
+            below(path).clear();
+        }
+
+        /*
+         * Returns null if there is no file at path
+         */
+        InputStream open(String path)
+        {
+            ByteBuffer content = files.get(path);
+            return content != null ? new BufferInputStream(content.duplicate()) : null;
+        }
+
+        long size(String path)
+        {
+            ByteBuffer content = files.get(path);
+            return content != null ? content.remaining() : 0;
+        }
+
+        /*
+         * The buffers are freed once they are no longer referenced
+         */
+        void release()
+        {
+            files.clear();
+            usedBytes.addAndGet(-reservedBytes);
+        }
+    }
+
+    /*
+     * Reads a buffer from its position to its limit
+     */
+    static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+        {
+            if(length == 0)
+            {
+                return 0;
+            }
+
+            if(!buffer.hasRemaining())
+            {
+                return -1;
+            }
+
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+
+    private final long capBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    MemoryStage(long capBytes)
+    {
+        this.capBytes = capBytes;
+    }
+
+    /*
+     * Returns null if the bytes do not fit under the cap next to the trees
+     * of the other modules
+     */
+    Tree reserve(long bytes)
+    {
+        long used;
+
+        do
+        {
+            used = usedBytes.get();
+
+            if(used + bytes > capBytes)
+            {
+                return null;
+            }
+        }
+        while (!usedBytes.compareAndSet(used, used + bytes));
+
+        return new Tree(bytes);
+    }
+
+    /*
+     * From the central directories, without inflating anything
+     */
+    static long uncompressedSize(File... archives) throws IOException
+    {
+        long size = 0;
+
+        for(File archive : archives)
+        {
+            try (ZipFile zipFile = new ZipFile(archive))
+            {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+                while (entries.hasMoreElements())
+                {
+                    size += Math.max(entries.nextElement().getSize(), 0);
+                }
+            }
+        }
+
+        return size;
+    }
+
+    /*
+     * Reads a whole entry into a direct buffer of its exact size
+     */
+    static ByteBuffer read(InputStream in, long size, byte[] buffer) throws IOException
+    {
+        if(size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Entry too large to stage in memory: " + size + " bytes");
+        }
+
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            if(read > content.remaining())
+            {
+                throw new IOException("Entry is larger than its recorded size of " + size + " bytes");
+            }
+
+            content.put(buffer, 0, read);
+        }
+
+        content.flip();
+        return content;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * The new content of a module, grouped by item. The content either comes
+ * from the central directories of the module's archives, in which case the
+ * size and CRC32 of every entry are known without inflating anything, or
+ * from a plain directory tree (e.g. FtcRobotController in the stock SDK).
+ */
+class ModuleContent implements Closeable
+{
+    static final long UNKNOWN_CRC = -1;
+
+    interface Opener
+    {
+        InputStream open() throws IOException;
+    }
+
+    static class Entry
+    {
+        final Updater.ModuleItem item;
+        final String relativePath;
+        final long size;
+        final long crc;
+        final Opener opener;
+
+        Entry(Updater.ModuleItem item, String relativePath, long size, long crc, Opener opener)
+        {
+            this.item = item;
+            this.relativePath = relativePath;
+            this.size = size;
+            this.crc = crc;
+            this.opener = opener;
+        }
+
+        InputStream open() throws IOException
+        {
+            return opener.open();
+        }
+    }
+
+    private final Map<Updater.ModuleItem, List<Entry>> entries = new EnumMap<>(Updater.ModuleItem.class);
+    private final List<ZipFile> openArchives = new ArrayList<>();
+
+    private ModuleContent() {}
+
+    static ModuleContent ofArchives(File aar, File sourcesJar) throws IOException
+    {
+        ModuleContent content = new ModuleContent();
+
+        try
+        {
+            content.addArchive(aar, Updater.Archive.AAR);
+            content.addArchive(sourcesJar, Updater.Archive.SOURCE_JAR);
+        }
+        catch (IOException e)
+        {
+            content.close();
+            throw e;
+        }
+
+        return content;
+    }
+
+    static ModuleContent ofDirectories(Map<Updater.ModuleItem, File> itemRoots) throws IOException
+    {
+        ModuleContent content = new ModuleContent();
+
+        for(Map.Entry<Updater.ModuleItem, File> itemRoot : itemRoots.entrySet())
+        {
+            content.addDirectory(itemRoot.getKey(), itemRoot.getValue());
+        }
+
+        return content;
+    }
+
+    List<Entry> entriesFor(Updater.ModuleItem item)
+    {
+        List<Entry> itemEntries = entries.get(item);
+        return itemEntries != null ? itemEntries : Collections.<Entry>emptyList();
+    }
+
+    private void addArchive(File archive, Updater.Archive archiveType) throws IOException
+    {
+        final ZipFile zipFile = new ZipFile(archive);
+        openArchives.add(zipFile);
+
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+
+        while (zipEntries.hasMoreElements())
+        {
+            final ZipEntry zipEntry = zipEntries.nextElement();
+
+            if(zipEntry.isDirectory())
+            {
+                continue;
+            }
+
+            Updater.ModuleItem item = Updater.ModuleItem.forArchiveEntry(archiveType, zipEntry.getName());
+
+            if(item == null)
+            {
+                continue;
+            }
+
+            add(new Entry(
+                    item,
+                    ArchiveStreamer.relativePathInItem(item, zipEntry.getName()),
+                    zipEntry.getSize(),
+                    zipEntry.getCrc(),
+                    () -> zipFile.getInputStream(zipEntry)));
+        }
+    }
+
+    private void addDirectory(final Updater.ModuleItem item, final File root) throws IOException
+    {
+        if(root.isFile())
+        {
+            add(new Entry(item, "", root.length(), UNKNOWN_CRC, () -> new FileInputStream(root)));
+            return;
+        }
+
+        if(!root.isDirectory())
+        {
+            return;
+        }
+
+        final Path rootPath = root.toPath();
+
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs)
+            {
+                String relativePath = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                add(new Entry(item, relativePath, attrs.size(), UNKNOWN_CRC, () -> Files.newInputStream(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void add(Entry entry)
+    {
+        List<Entry> itemEntries = entries.get(entry.item);
+
+        if(itemEntries == null)
+        {
+            itemEntries = new ArrayList<>();
+            entries.put(entry.item, itemEntries);
+        }
+
+        itemEntries.add(entry);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        IOException exception = null;
+
+        for(ZipFile zipFile : openArchives)
+        {
+            try
+            {
+                zipFile.close();
+            }
+            catch (IOException e)
+            {
+                exception = e;
+            }
+        }
+
+        openArchives.clear();
+
+        if(exception != null)
+        {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Extracts a whole archive using several threads. The central directory is
+ * read once and the entries are split into batches, with small entries
+ * grouped together so that the per-batch overhead stays low. Each worker
+ * opens its own handle to the archive, so the workers never contend on a
+ * shared one, and reads entries into a buffer sized from the central
+ * directory so that most entries are written in a single call. Entries
+ * can also be extracted into a MemoryStage tree instead of to disk.
+ */
+class ParallelExtractor
+{
+    static class Result
+    {
+        long files;
+        long bytesRead;
+        long bytesWritten;
+    }
+
+    private static final long BATCH_BYTES = 1024 * 1024;
+    private static final int BATCH_ENTRIES = 64;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    /*
+     * Where the entries of an archive are extracted to
+     */
+    private interface Target
+    {
+        void prepare(List<? extends ZipEntry> entries) throws IOException;
+
+        void extract(ZipFile zipFile, ZipEntry entry, byte[] buffer) throws IOException;
+    }
+
+    private final int numThreads;
+    private final ExtractionStore store;
+
+    ParallelExtractor(int numThreads)
+    {
+        this(numThreads, null);
+    }
+
+    /*
+     * Entries that are in the store are taken from it instead of being
+     * inflated, and the others are added to it
+     */
+    ParallelExtractor(int numThreads, ExtractionStore store)
+    {
+        this.numThreads = Math.max(1, numThreads);
+        this.store = store;
+    }
+
+    Result extractAll(File archive, File destDir) throws IOException
+    {
+        return extractAll(archive, destDir, new ProgressRenderer.Task(""));
+    }
+
+    /*
+     * The entries are also counted in progress as they are written
+     */
+    Result extractAll(File archive, final File destDir, ProgressRenderer.Task progress) throws IOException
+    {
+        return extract(archive, progress, new Target()
+        {
+            @Override
+            public void prepare(List<? extends ZipEntry> entries) throws IOException
+            {
+                createFolders(entries, destDir);
+            }
+
+            @Override
+            public void extract(ZipFile zipFile, ZipEntry entry, byte[] buffer) throws IOException
+            {
+                File dest = fileFor(destDir, entry.getName());
+                String key = store != null ? ExtractionStore.keyFor(entry) : null;
+
+                if(key == null)
+                {
+                    extractEntry(zipFile, entry, dest, buffer, null);
+                }
+                else if(!store.materialize(key, entry.getSize(), dest))
+                {
+                    CRC32 crc = new CRC32();
+                    extractEntry(zipFile, entry, dest, buffer, crc);
+                    store.add(key, dest, crc.getValue());
+                }
+            }
+        });
+    }
+
+    /*
+     * Extracts the entries into the tree, below root, instead of to disk.
+     * Throws OutOfMemoryError if the direct buffers cannot be allocated.
+     */
+    Result extractAll(File archive, final MemoryStage.Tree tree, final String root, ProgressRenderer.Task progress) throws IOException
+    {
+        return extract(archive, progress, new Target()
+        {
+            @Override
+            public void prepare(List<? extends ZipEntry> entries) throws IOException
+            {
+                Path rootPath = Paths.get(root);
+
+                for(ZipEntry entry : entries)
+                {
+                    checkName(rootPath, entry.getName());
+                }
+            }
+
+            @Override
+            public void extract(ZipFile zipFile, ZipEntry entry, byte[] buffer) throws IOException
+            {
+                try (InputStream in = zipFile.getInputStream(entry))
+                {
+                    tree.put(root + '/' + entry.getName(), MemoryStage.read(in, entry.getSize(), buffer));
+                }
+            }
+        });
+    }
+
+    private Result extract(final File archive, final ProgressRenderer.Task progress, final Target target) throws IOException
+    {
+        final Result result = new Result();
+        final Queue<List<ZipEntry>> batches = new ConcurrentLinkedQueue<>();
+
+        try (ZipFile zipFile = new ZipFile(archive))
+        {
+            List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+            target.prepare(entries);
+
+            List<ZipEntry> batch = new ArrayList<>();
+            long batchBytes = 0;
+
+            for(ZipEntry entry : entries)
+            {
+                if(entry.isDirectory())
+                {
+                    continue;
+                }
+
+                batch.add(entry);
+                batchBytes += Math.max(entry.getSize(), 0);
+                result.files++;
+                result.bytesWritten += Math.max(entry.getSize(), 0);
+
+                if(batchBytes >= BATCH_BYTES || batch.size() >= BATCH_ENTRIES)
+                {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+
+            if(!batch.isEmpty())
+            {
+                batches.add(batch);
+            }
+        }
+
+        result.bytesRead = archive.length();
+        progress.expect(result.files, result.bytesWritten);
+
+        int numWorkers = Math.min(numThreads, batches.size());
+        final List<Thread> workers = new ArrayList<>();
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for(int i = 0; i < numWorkers; i++)
+        {
+            Thread worker = new Thread(() ->
+            {
+                try (ZipFile zipFile = new ZipFile(archive))
+                {
+                    byte[] buffer = new byte[8192];
+                    List<ZipEntry> next;
+
+                    while (failures.isEmpty() && (next = batches.poll()) != null)
+                    {
+                        for(ZipEntry entry : next)
+                        {
+                            if(entry.getSize() > buffer.length && buffer.length < MAX_BUFFER_SIZE)
+                            {
+                                buffer = new byte[(int) Math.min(entry.getSize(), MAX_BUFFER_SIZE)];
+                            }
+
+                            target.extract(zipFile, entry, buffer);
+                            progress.add(1, Math.max(entry.getSize(), 0));
+                        }
+                    }
+                }
+                catch (Throwable e)
+                {
+                    // Anything a worker does not report would leave its batch silently missing
+                    failures.add(e);
+                }
+            }, "ParallelExtractor");
+
+            workers.add(worker);
+            worker.start();
+        }
+
+        try
+        {
+            for(Thread worker : workers)
+            {
+                worker.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting " + archive, e);
+        }
+
+        Throwable failure = failures.peek();
+
+        if(failure instanceof OutOfMemoryError)
+        {
+            throw (OutOfMemoryError) failure;
+        }
+        else if(failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+        else if(failure != null)
+        {
+            throw new IOException("Failed to extract " + archive, failure);
+        }
+
+        return result;
+    }
+
+    /*
+     * All folders are created up front, so that the workers only ever
+     * create files
+     */
+    private static void createFolders(List<? extends ZipEntry> entries, File destDir) throws IOException
+    {
+        Set<File> folders = new HashSet<>();
+        folders.add(destDir);
+        Path destPath = destDir.toPath();
+
+        for(ZipEntry entry : entries)
+        {
+            String name = entry.getName();
+            checkName(destPath, name);
+
+            File file = fileFor(destDir, name);
+            folders.add(entry.isDirectory() ? file : file.getParentFile());
+        }
+
+        for(File folder : folders)
+        {
+            if(!folder.isDirectory() && !folder.mkdirs())
+            {
+                throw new FileSystemException(folder.getAbsolutePath(), null, "Cannot create folder");
+            }
+        }
+    }
+
+    /*
+     * The entry must resolve to somewhere below destDir once '..' and the
+     * like are taken into account, and only a folder can resolve to destDir
+     * itself
+     */
+    private static void checkName(Path destDir, String name) throws IOException
+    {
+        Path root = destDir.toAbsolutePath().normalize();
+        Path resolved = root.resolve(name).normalize();
+
+        if(!resolved.startsWith(root) || (resolved.equals(root) && !name.endsWith("/")))
+        {
+            throw new IOException("Refusing to extract entry outside of the destination: " + name);
+        }
+    }
+
+    private static File fileFor(File destDir, String name)
+    {
+        return destDir.toPath().resolve(name).normalize().toFile();
+    }
+
+    /*
+     * The content is also added to crc as it is written, unless it is null
+     */
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, File dest, byte[] buffer, CRC32 crc) throws IOException
+    {
+        FileUtil.unlinkBeforeWrite(dest.toPath());
+
+        try (InputStream in = zipFile.getInputStream(entry); OutputStream out = new FileOutputStream(dest))
+        {
+            int filled = 0;
+            int read;
+
+            while ((read = in.read(buffer, filled, buffer.length - filled)) != -1)
+            {
+                filled += read;
+
+                if(filled == buffer.length)
+                {
+                    write(out, buffer, filled, crc);
+                    filled = 0;
+                }
+            }
+
+            if(filled > 0)
+            {
+                write(out, buffer, filled, crc);
+            }
+        }
+    }
+
+    private static void write(OutputStream out, byte[] buffer, int length, CRC32 crc) throws IOException
+    {
+        out.write(buffer, 0, length);
+
+        if(crc != null)
+        {
+            crc.update(buffer, 0, length);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Draws a live progress region below the step that is in progress, with one
+ * line per active task, from its own thread at a fixed refresh rate. The
+ * threads doing the work only bump the counters of their task, and never
+ * touch the console. Anything else that prints to the console must call
+ * clear() first (while holding the console lock), and tell the renderer
+ * which column the cursor was left at, so that the region can be drawn
+ * below it and the cursor put back afterwards.
+ *
+ * When the output is not a terminal, nothing is drawn and the console only
+ * gets the usual one line per step.
+ */
+class ProgressRenderer
+{
+    static class Task
+    {
+        final String label;
+        final long startNanos = System.nanoTime();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong expectedFiles = new AtomicLong();
+        final AtomicLong expectedBytes = new AtomicLong();
+
+        Task(String label)
+        {
+            this.label = label;
+        }
+
+        void add(long numFiles, long numBytes)
+        {
+            files.addAndGet(numFiles);
+            bytes.addAndGet(numBytes);
+        }
+
+        /*
+         * Work that is known to be coming, from which the ETA is worked out
+         */
+        void expect(long numFiles, long numBytes)
+        {
+            expectedFiles.addAndGet(numFiles);
+            expectedBytes.addAndGet(numBytes);
+        }
+    }
+
+    private static final long REFRESH_MILLIS = 200;
+    private static final long COLUMNS_REFRESH_MILLIS = 5000;
+    private static final int DEFAULT_COLUMNS = 80;
+    private static final String ESC = (char)27 + "[";
+
+    private final Object lock;
+    private final PrintStream out;
+    private final boolean terminal;
+    private final List<Task> tasks = new CopyOnWriteArrayList<>();
+    private volatile int columns;
+    private int cursorColumn = 0;
+    private int drawnLines = 0;
+    private Thread thread;
+
+    ProgressRenderer(Object lock, PrintStream out)
+    {
+        this.lock = lock;
+        this.out = out;
+        this.terminal = isTerminal();
+        this.columns = queryColumns();
+    }
+
+    Task begin(String label)
+    {
+        Task task = new Task(label);
+
+        if(terminal)
+        {
+            tasks.add(task);
+            startThread();
+        }
+
+        return task;
+    }
+
+    void end(Task task)
+    {
+        tasks.remove(task);
+    }
+
+    int getColumns()
+    {
+        return columns;
+    }
+
+    /*
+     * Must be called while holding the console lock, before printing
+     * anything. Afterwards, the cursor is where it was left by the last
+     * thing that was printed.
+     */
+    void clear()
+    {
+        if(drawnLines > 0)
+        {
+            out.print(ESC + "J");
+            out.flush();
+            drawnLines = 0;
+        }
+    }
+
+    /*
+     * Must be called while holding the console lock, after printing
+     */
+    void setCursorColumn(int cursorColumn)
+    {
+        this.cursorColumn = cursorColumn;
+    }
+
+    private synchronized void startThread()
+    {
+        if(thread != null)
+        {
+            return;
+        }
+
+        thread = new Thread(() ->
+        {
+            try
+            {
+                long columnsQueried = System.nanoTime();
+
+                while (true)
+                {
+                    Thread.sleep(REFRESH_MILLIS);
+
+                    /*
+                     * The terminal may have been resized since the width
+                     * was last asked for. Asking can start a process, so
+                     * it is done rarely, and not while holding the lock.
+                     */
+                    if(System.nanoTime() - columnsQueried >= COLUMNS_REFRESH_MILLIS * 1000000)
+                    {
+                        columns = queryColumns();
+                        columnsQueried = System.nanoTime();
+                    }
+
+                    synchronized (lock)
+                    {
+                        draw();
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, "ProgressRenderer");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void draw()
+    {
+        if(tasks.isEmpty())
+        {
+            clear();
+            return;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(ESC).append("J");
+
+        int numLines = 0;
+
+        for(Task task : tasks)
+        {
+            builder.append('\n').append(format(task, columns - 1));
+            numLines++;
+        }
+
+        builder.append(ESC).append(numLines).append('A').append('\r');
+
+        if(cursorColumn % columns > 0)
+        {
+            builder.append(ESC).append(cursorColumn % columns).append('C');
+        }
+
+        out.print(builder);
+        out.flush();
+        drawnLines = numLines;
+    }
+
+    static String format(Task task, int width)
+    {
+        double seconds = Math.max((System.nanoTime() - task.startNanos) / 1e9, 1e-3);
+        long files = task.files.get();
+        long bytes = task.bytes.get();
+
+        String stats = String.format(Locale.ROOT, "%d files  %.0f files/s  %.1f MB/s  ETA %s",
+                files, files / seconds, bytes / seconds / 1e6, formatEta(task, seconds));
+
+        String label = task.label;
+        int labelWidth = width - stats.length() - 2;
+
+        if(labelWidth < 4)
+        {
+            return stats.length() > width ? stats.substring(0, Math.max(width, 0)) : stats;
+        }
+
+        if(label.length() > labelWidth)
+        {
+            label = label.substring(0, labelWidth - 3) + "...";
+        }
+
+        StringBuilder line = new StringBuilder(width);
+        line.append(label);
+
+        while (line.length() < width - stats.length())
+        {
+            line.append(' ');
+        }
+
+        return line.append(stats).toString();
+    }
+
+    /*
+     * The ETA is worked out from whichever of the files or the bytes is
+     * further along, since a single large file holds back the bytes until
+     * it is done, and many small files hold back the files
+     */
+    private static String formatEta(Task task, double seconds)
+    {
+        long expectedBytes = task.expectedBytes.get();
+        long expectedFiles = task.expectedFiles.get();
+        double done = 0;
+
+        if(expectedBytes > 0)
+        {
+            done = Math.max(done, (double) task.bytes.get() / expectedBytes);
+        }
+
+        if(expectedFiles > 0)
+        {
+            done = Math.max(done, (double) task.files.get() / expectedFiles);
+        }
+
+        if(done <= 0)
+        {
+            return "--:--";
+        }
+
+        long remaining = Math.round(seconds * (1 - Math.min(done, 1)) / done);
+        return String.format(Locale.ROOT, "%02d:%02d", remaining / 60, remaining % 60);
+    }
+
+    /*
+     * System.console() is null when either stdin or stdout is redirected.
+     * Since Java 22 it is not, and Console.isTerminal() has to be asked.
+     */
+    private static boolean isTerminal()
+    {
+        Console console = System.console();
+
+        if(console == null || "dumb".equals(System.getenv("TERM")))
+        {
+            return false;
+        }
+
+        try
+        {
+            Method isTerminal = Console.class.getMethod("isTerminal");
+            return (Boolean) isTerminal.invoke(console);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return true;
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return false;
+        }
+    }
+
+    /*
+     * Java has no way of asking for the size of the terminal, so it is
+     * taken from $COLUMNS if the shell exported it, or else from stty
+     */
+    private int queryColumns()
+    {
+        try
+        {
+            String env = System.getenv("COLUMNS");
+
+            if(env != null)
+            {
+                return Math.max(Integer.parseInt(env.trim()), 20);
+            }
+        }
+        catch (NumberFormatException ignored)
+        {
+
+        }
+
+        File tty = new File("/dev/tty");
+
+        if(!terminal || !tty.exists())
+        {
+            return DEFAULT_COLUMNS;
+        }
+
+        try
+        {
+            Process process = new ProcessBuilder("stty", "size").redirectInput(tty).redirectErrorStream(true).start();
+            String line;
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream())))
+            {
+                line = reader.readLine();
+            }
+
+            String[] size = line != null ? line.trim().split("\\s+") : new String[0];
+
+            /*
+             * A pseudo terminal that was never given a size reports 0
+             */
+            if(process.waitFor() == 0 && size.length == 2 && Integer.parseInt(size[1]) > 0)
+            {
+                return Math.max(Integer.parseInt(size[1]), 20);
+            }
+        }
+        catch (IOException | NumberFormatException ignored)
+        {
+
+        }
+        catch (InterruptedException e)
+        {
+            // The render thread is stopped by interrupting it
+            Thread.currentThread().interrupt();
+        }
+
+        return DEFAULT_COLUMNS;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Edits a text file of a module as it is written, so that post-processing
+ * such as adding license headers or patching imports happens in the same
+ * pass instead of in another walk over the merged tree afterwards. Binary
+ * files are never passed to a transform.
+ *
+ * Besides the built-in transforms below, any class on the classpath that
+ * implements this interface can be used. It needs either a constructor
+ * that takes the argument from the configuration as a String, or one that
+ * takes nothing.
+ */
+public interface SourceTransform
+{
+    /*
+     * Returns the new content of the file at relativePath (relative to the
+     * item's folder, with '/' as the separator)
+     */
+    String apply(String relativePath, String content) throws IOException;
+
+    /*
+     * Prepends the content of a file, unless it is already there
+     */
+    class Header implements SourceTransform
+    {
+        private final String header;
+
+        Header(File file) throws IOException
+        {
+            if(!file.isFile())
+            {
+                throw new IOException("header file " + file + " does not exist");
+            }
+
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).replace("\r\n", "\n");
+            this.header = content.endsWith("\n") ? content : content + "\n";
+        }
+
+        @Override
+        public String apply(String relativePath, String content)
+        {
+            return content.startsWith(header) ? content : header + content;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "header " + header;
+        }
+    }
+
+    /*
+     * Replaces every occurrence of a literal string, e.g. an import line
+     */
+    class Replace implements SourceTransform
+    {
+        static final String SEPARATOR = " => ";
+
+        private final String target;
+        private final String replacement;
+
+        Replace(String argument) throws IOException
+        {
+            int separator = argument.indexOf(SEPARATOR);
+
+            if(separator <= 0)
+            {
+                throw new IOException("Expected '<text>" + SEPARATOR + "<replacement>', got '" + argument + "'");
+            }
+
+            this.target = argument.substring(0, separator);
+            this.replacement = argument.substring(separator + SEPARATOR.length());
+        }
+
+        @Override
+        public String apply(String relativePath, String content)
+        {
+            return content.replace(target, replacement);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "replace " + target + SEPARATOR + replacement;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The transforms to apply to the Java sources and resources of each module,
+ * read from a configuration file with one transform per line:
+ *
+ *     <module or *> <java|resources> header <file>
+ *     <module or *> <java|resources> replace <text> => <replacement>
+ *     <module or *> <java|resources> class <class name> [argument]
+ *
+ * Transforms run in the order they are listed. Relative header files are
+ * resolved against the folder of the configuration file, and lines that
+ * start with '#' are comments.
+ */
+class SourceTransforms
+{
+    private final Map<Updater.Module, Map<Updater.ModuleItem, List<SourceTransform>>> transforms = new EnumMap<>(Updater.Module.class);
+    private final Map<Updater.Module, StringBuilder> descriptions = new EnumMap<>(Updater.Module.class);
+
+    static SourceTransforms load(File config) throws IOException
+    {
+        SourceTransforms result = new SourceTransforms();
+        List<String> lines = Files.readAllLines(config.toPath(), StandardCharsets.UTF_8);
+
+        for(int i = 0; i < lines.size(); i++)
+        {
+            String line = lines.get(i).trim();
+
+            if(line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+
+            String[] parts = line.split("\\s+", 4);
+
+            if(parts.length < 3)
+            {
+                throw new IOException(config + ":" + (i + 1) + ": expected '<module> <java|resources> <transform> [argument]'");
+            }
+
+            Updater.ModuleItem item = itemFor(parts[1]);
+
+            if(item == null)
+            {
+                throw new IOException(config + ":" + (i + 1) + ": unknown item '" + parts[1] + "', expected 'java' or 'resources'");
+            }
+
+            List<Updater.Module> modules = new ArrayList<>();
+
+            for(Updater.Module module : Updater.Module.values())
+            {
+                if(parts[0].equals("*") || parts[0].equals(module.name))
+                {
+                    modules.add(module);
+                }
+            }
+
+            if(modules.isEmpty())
+            {
+                throw new IOException(config + ":" + (i + 1) + ": unknown module '" + parts[0] + "'");
+            }
+
+            SourceTransform transform;
+            String description = line;
+
+            try
+            {
+                File configDir = config.getAbsoluteFile().getParentFile();
+                transform = create(parts[2], parts.length == 4 ? parts[3] : null, configDir);
+
+                if(parts[2].equals("header"))
+                {
+                    description += "\n" + new String(Files.readAllBytes(headerFile(parts[3], configDir).toPath()), StandardCharsets.UTF_8);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new IOException(config + ":" + (i + 1) + ": " + e.getMessage(), e);
+            }
+
+            for(Updater.Module module : modules)
+            {
+                result.transforms.computeIfAbsent(module, m -> new EnumMap<>(Updater.ModuleItem.class))
+                        .computeIfAbsent(item, it -> new ArrayList<>())
+                        .add(transform);
+                result.descriptions.computeIfAbsent(module, m -> new StringBuilder())
+                        .append(description).append('\n');
+            }
+        }
+
+        return result;
+    }
+
+    List<SourceTransform> forItem(Updater.Module module, Updater.ModuleItem item)
+    {
+        Map<Updater.ModuleItem, List<SourceTransform>> items = transforms.get(module);
+
+        if(items == null || !items.containsKey(item))
+        {
+            return Collections.emptyList();
+        }
+
+        return items.get(item);
+    }
+
+    /*
+     * Changes to the configuration have to be picked up by the fingerprint
+     * of a module, or --skip-unchanged would keep the old output. This is
+     * made of the lines that apply to the module and the content of their
+     * header files; for 'class' transforms only the line is covered, not
+     * the code of the class.
+     */
+    String describe(Updater.Module module)
+    {
+        StringBuilder description = descriptions.get(module);
+        return description != null ? description.toString() : "";
+    }
+
+    private static Updater.ModuleItem itemFor(String name)
+    {
+        switch (name)
+        {
+            case "java":
+                return Updater.ModuleItem.JAVA_SOURCE;
+            case "resources":
+                return Updater.ModuleItem.RESOURCES;
+            default:
+                return null;
+        }
+    }
+
+    private static SourceTransform create(String name, String argument, File configDir) throws IOException
+    {
+        switch (name)
+        {
+            case "header":
+                return new SourceTransform.Header(headerFile(requireArgument(name, argument), configDir));
+            case "replace":
+                return new SourceTransform.Replace(requireArgument(name, argument));
+            case "class":
+                return instantiate(requireArgument(name, argument));
+            default:
+                throw new IOException("unknown transform '" + name + "', expected 'header', 'replace' or 'class'");
+        }
+    }
+
+    private static File headerFile(String argument, File configDir)
+    {
+        File file = new File(argument);
+        return file.isAbsolute() ? file : new File(configDir, argument);
+    }
+
+    private static SourceTransform instantiate(String argument) throws IOException
+    {
+        String[] parts = argument.split("\\s+", 2);
+
+        try
+        {
+            Class<? extends SourceTransform> type = Class.forName(parts[0]).asSubclass(SourceTransform.class);
+
+            if(parts.length == 2)
+            {
+                Constructor<? extends SourceTransform> constructor = type.getDeclaredConstructor(String.class);
+                constructor.setAccessible(true);
+                return constructor.newInstance(parts[1]);
+            }
+
+            Constructor<? extends SourceTransform> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e)
+        {
+            throw new IOException("cannot create transform '" + parts[0] + "': " + e, e);
+        }
+    }
+
+    private static String requireArgument(String name, String argument) throws IOException
+    {
+        if(argument == null)
+        {
+            throw new IOException("transform '" + name + "' needs an argument");
+        }
+
+        return argument;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Records the duration and I/O of every step, and writes them out as JSON,
+ * along with totals per module and per module item. A previous report can
+ * be compared against to find the steps that got slower.
+ *
+ * Every step is written on a line of its own, which is what allows
+ * readSteps() to read a report back without a full JSON parser.
+ */
+class StepReport
+{
+    static class Step
+    {
+        final String module;
+        final String item;
+        final String name;
+        String result;
+        long startNanos;
+        double millis;
+        long bytesRead;
+        long bytesWritten;
+        long files;
+
+        Step(String module, String item, String name)
+        {
+            this.module = module;
+            this.item = item;
+            this.name = name;
+        }
+
+        String key()
+        {
+            return module + "|" + name;
+        }
+    }
+
+    private static final Pattern STEP_LINE = Pattern.compile(
+            "\\{\"module\": (null|\"(?:[^\"\\\\]|\\\\.)*\"), \"item\": (null|\"(?:[^\"\\\\]|\\\\.)*\"), \"step\": \"((?:[^\"\\\\]|\\\\.)*)\", \"result\": \"(\\w+)\", \"ms\": ([0-9.]+)");
+
+    private final List<Step> steps = new ArrayList<>();
+    private final Map<String, Long> totals = new LinkedHashMap<>();
+
+    synchronized void add(Step step)
+    {
+        steps.add(step);
+    }
+
+    synchronized List<Step> getSteps()
+    {
+        return new ArrayList<>(steps);
+    }
+
+    /*
+     * A run-wide number that is not tied to a single step
+     */
+    synchronized void putTotal(String name, long value)
+    {
+        totals.put(name, value);
+    }
+
+    void write(File file, double totalMillis) throws IOException
+    {
+        List<Step> steps = getSteps();
+        Map<String, Step> modules = new LinkedHashMap<>();
+        Map<String, Step> items = new LinkedHashMap<>();
+
+        for(Step step : steps)
+        {
+            if(step.module == null)
+            {
+                continue;
+            }
+
+            accumulate(modules, step.module, new Step(step.module, null, null), step);
+
+            if(step.item != null)
+            {
+                accumulate(items, step.module + "|" + step.item, new Step(step.module, step.item, null), step);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)))
+        {
+            out.println("{");
+            out.println("  \"version\": 1,");
+            out.println("  \"totalMs\": " + formatMillis(totalMillis) + ",");
+            writeTotals(out);
+            writeSteps(out, "steps", steps, true, false);
+            writeSteps(out, "modules", new ArrayList<>(modules.values()), false, false);
+            writeSteps(out, "items", new ArrayList<>(items.values()), false, true);
+            out.println("}");
+        }
+    }
+
+    /*
+     * Reads back the steps of a report written by write()
+     */
+    static List<Step> readSteps(File file) throws IOException
+    {
+        List<Step> steps = new ArrayList<>();
+        boolean inSteps = false;
+
+        for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(line.trim().startsWith("\"steps\""))
+            {
+                inSteps = true;
+                continue;
+            }
+            else if(inSteps && line.trim().startsWith("]"))
+            {
+                break;
+            }
+
+            Matcher matcher = STEP_LINE.matcher(line);
+
+            if(inSteps && matcher.find())
+            {
+                Step step = new Step(unquote(matcher.group(1)), unquote(matcher.group(2)), unescape(matcher.group(3)));
+                step.result = matcher.group(4);
+                step.millis = Double.parseDouble(matcher.group(5));
+                steps.add(step);
+            }
+        }
+
+        return steps;
+    }
+
+    /*
+     * Returns a description of every step that took longer than in the
+     * previous report, by more than the given fraction and by more than
+     * the given number of milliseconds (so that noise in very short steps
+     * is not reported)
+     */
+    List<String> compare(List<Step> previous, double threshold, double minMillis)
+    {
+        Map<String, Step> previousByKey = new LinkedHashMap<>();
+
+        for(Step step : previous)
+        {
+            previousByKey.put(step.key(), step);
+        }
+
+        List<String> regressions = new ArrayList<>();
+        DecimalFormat format = new DecimalFormat("0.#");
+
+        for(Step step : getSteps())
+        {
+            Step before = previousByKey.get(step.key());
+
+            if(before == null || !"OK".equals(step.result) || !"OK".equals(before.result))
+            {
+                continue;
+            }
+
+            if(step.millis - before.millis > minMillis && step.millis > before.millis * (1 + threshold))
+            {
+                String regression = step.name + ": " + format.format(before.millis) + " ms -> " + format.format(step.millis) + " ms";
+
+                if(before.millis > 0)
+                {
+                    regression += " (+" + format.format((step.millis / before.millis - 1) * 100) + "%)";
+                }
+
+                regressions.add(regression);
+            }
+        }
+
+        return regressions;
+    }
+
+    private static void accumulate(Map<String, Step> totals, String key, Step empty, Step step)
+    {
+        Step total = totals.get(key);
+
+        if(total == null)
+        {
+            total = empty;
+            total.result = "OK";
+            totals.put(key, total);
+        }
+
+        total.millis += step.millis;
+        total.bytesRead += step.bytesRead;
+        total.bytesWritten += step.bytesWritten;
+        total.files += step.files;
+
+        if("FAIL".equals(step.result))
+        {
+            total.result = "FAIL";
+        }
+    }
+
+    private synchronized void writeTotals(PrintWriter out)
+    {
+        StringBuilder builder = new StringBuilder("  \"totals\": {");
+        String separator = "";
+
+        for(Map.Entry<String, Long> total : totals.entrySet())
+        {
+            builder.append(separator).append(quote(total.getKey())).append(": ").append(total.getValue());
+            separator = ", ";
+        }
+
+        out.println(builder.append("},"));
+    }
+
+    private static void writeSteps(PrintWriter out, String name, List<Step> steps, boolean withNames, boolean last)
+    {
+        out.println("  \"" + name + "\": [");
+
+        for(int i = 0; i < steps.size(); i++)
+        {
+            Step step = steps.get(i);
+            StringBuilder builder = new StringBuilder("    {");
+
+            builder.append("\"module\": ").append(quote(step.module));
+            builder.append(", \"item\": ").append(quote(step.item));
+
+            if(withNames)
+            {
+                builder.append(", \"step\": ").append(quote(step.name));
+            }
+
+            builder.append(", \"result\": ").append(quote(step.result));
+            builder.append(", \"ms\": ").append(formatMillis(step.millis));
+            builder.append(", \"bytesRead\": ").append(step.bytesRead);
+            builder.append(", \"bytesWritten\": ").append(step.bytesWritten);
+            builder.append(", \"files\": ").append(step.files);
+            builder.append(i == steps.size() - 1 ? "}" : "},");
+
+            out.println(builder);
+        }
+
+        out.println(last ? "  ]" : "  ],");
+    }
+
+    private static String formatMillis(double millis)
+    {
+        return String.format(Locale.ROOT, "%.3f", millis);
+    }
+
+    static String quote(String s)
+    {
+        if(s == null)
+        {
+            return "null";
+        }
+
+        StringBuilder builder = new StringBuilder("\"");
+
+        for(char c : s.toCharArray())
+        {
+            if(c == '"' || c == '\\')
+            {
+                builder.append('\\').append(c);
+            }
+            else if(c < 0x20)
+            {
+                builder.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+
+        return builder.append('"').toString();
+    }
+
+    private static String unquote(String s)
+    {
+        return s.equals("null") ? null : unescape(s.substring(1, s.length() - 1));
+    }
+
+    private static String unescape(String s)
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for(int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if(c == '\\' && i + 1 < s.length())
+            {
+                char next = s.charAt(++i);
+
+                if(next == 'u' && i + 4 < s.length())
+                {
+                    builder.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                else
+                {
+                    builder.append(next);
+                }
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+
+        return builder.toString();
+    }
+}
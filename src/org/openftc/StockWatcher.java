@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Watches the libs folder of a stock SDK and its FtcRobotController tree,
+ * and reports which modules changed. A rebuild usually writes several files
+ * in quick succession (or one file in several writes), so changes are only
+ * reported once nothing else has changed for the debounce period.
+ */
+class StockWatcher implements Closeable
+{
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Path robotControllerDir;
+    private final long debounceMillis;
+
+    StockWatcher(String newStockDir, long debounceMillis) throws IOException
+    {
+        this.debounceMillis = debounceMillis;
+        watchService = FileSystems.getDefault().newWatchService();
+        robotControllerDir = new File(newStockDir, Updater.Module.FTCROBOTCONTROLLER.name).toPath();
+
+        register(new File(newStockDir, "libs").toPath());
+        registerTree(robotControllerDir);
+    }
+
+    /*
+     * Blocks until at least one module changed and the changes settled
+     */
+    Set<Updater.Module> awaitChanges() throws InterruptedException, IOException
+    {
+        Set<Updater.Module> changed = EnumSet.noneOf(Updater.Module.class);
+
+        while (changed.isEmpty())
+        {
+            WatchKey key = watchService.take();
+
+            while (key != null)
+            {
+                collect(key, changed);
+                key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return changed;
+    }
+
+    private void collect(WatchKey key, Set<Updater.Module> changed) throws IOException
+    {
+        Path dir = watchedDirs.get(key);
+
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                changed.addAll(EnumSet.allOf(Updater.Module.class));
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+
+            if(dir.startsWith(robotControllerDir))
+            {
+                changed.add(Updater.Module.FTCROBOTCONTROLLER);
+
+                if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child))
+                {
+                    registerTree(child);
+                }
+            }
+            else
+            {
+                Updater.Module module = Updater.Module.forStockLibsFile(child.getFileName().toString());
+
+                if(module != null)
+                {
+                    changed.add(module);
+                }
+            }
+        }
+
+        if(!key.reset())
+        {
+            watchedDirs.remove(key);
+        }
+    }
+
+    private void register(Path dir) throws IOException
+    {
+        WatchKey key = dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+
+        watchedDirs.put(key, dir);
+    }
+
+    /*
+     * A WatchService only watches a single folder, so every folder of the
+     * tree is registered on its own
+     */
+    private void registerTree(Path root) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        watchService.close();
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Brings one item of an existing module in line with its new content by
+ * writing only the files that were added or changed and deleting only the
+ * files that no longer exist, rather than deleting the item and copying
+ * it from scratch. A file is considered unchanged if its size and CRC32
+ * match those of the new entry.
+ */
+class SyncEngine
+{
+    static class Result
+    {
+        int added;
+        int changed;
+        int unchanged;
+        int deleted;
+        long bytesRead;
+        long bytesWritten;
+
+        int touched()
+        {
+            return added + changed + deleted;
+        }
+
+        @Override
+        public String toString()
+        {
+            return added + " added, " + changed + " changed, " + unchanged + " unchanged, " + deleted + " deleted";
+        }
+    }
+
+    /*
+     * What a sync would do, without doing it
+     */
+    static class Plan
+    {
+        final List<File> added = new ArrayList<>();
+        final List<File> changed = new ArrayList<>();
+        final List<File> removed = new ArrayList<>();
+        long addedBytes;
+        long changedBytes;
+        long removedBytes;
+        int unchanged;
+        int inspected;
+
+        void add(Plan other)
+        {
+            added.addAll(other.added);
+            changed.addAll(other.changed);
+            removed.addAll(other.removed);
+            addedBytes += other.addedBytes;
+            changedBytes += other.changedBytes;
+            removedBytes += other.removedBytes;
+            unchanged += other.unchanged;
+            inspected += other.inspected;
+        }
+
+        @Override
+        public String toString()
+        {
+            return added.size() + " added (" + FileUtil.formatSize(addedBytes) + "), "
+                    + changed.size() + " changed (" + FileUtil.formatSize(changedBytes) + "), "
+                    + removed.size() + " removed (" + FileUtil.formatSize(removedBytes) + "), "
+                    + unchanged + " unchanged";
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * Changes are also counted in counts, unless it is null, and the
+     * entries in progress as they are compared
+     */
+    static Result sync(List<ModuleContent.Entry> entries, File itemRoot, ArchiveStreamer.Destination destination, EntryWriter writer, final ChangeStats.Counts counts, ProgressRenderer.Task progress) throws IOException
+    {
+        final Result result = new Result();
+        final Set<Path> wanted = new HashSet<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        for(ModuleContent.Entry entry : entries)
+        {
+            progress.expect(1, entry.size);
+        }
+
+        for(ModuleContent.Entry entry : entries)
+        {
+            File dest = destination.fileFor(entry.item, entry.relativePath);
+            wanted.add(dest.toPath());
+
+            String name = nameOf(entry);
+
+            if(writer.transforms(entry.item, entry.relativePath))
+            {
+                if(dest.isFile() && matchesUntransformed(entry, dest, writer, buffer, result))
+                {
+                    result.unchanged++;
+                }
+                else
+                {
+                    syncTransformed(entry, dest, writer, buffer, result, counts);
+                }
+            }
+            else if(!dest.isFile())
+            {
+                write(entry, dest, writer, buffer, result);
+                result.added++;
+
+                if(counts != null)
+                {
+                    counts.fileAdded(name, readForStats(name, dest));
+                }
+            }
+            else if(dest.length() == entry.size && FileUtil.crc32(dest, buffer) == crcOf(entry, buffer, result))
+            {
+                result.bytesRead += dest.length();
+                result.unchanged++;
+            }
+            else
+            {
+                byte[] oldContent = counts != null ? readForStats(name, dest) : null;
+                result.bytesRead += dest.length() == entry.size ? dest.length() : 0;
+                write(entry, dest, writer, buffer, result);
+                result.changed++;
+
+                if(counts != null)
+                {
+                    counts.fileChanged(name, oldContent, readForStats(name, dest));
+                }
+            }
+
+            progress.add(1, entry.size);
+        }
+
+        final Path rootPath = itemRoot.toPath();
+
+        if(itemRoot.isFile())
+        {
+            if(!wanted.contains(rootPath))
+            {
+                if(counts != null)
+                {
+                    counts.fileDeleted(itemRoot.getName(), readForStats(itemRoot.getName(), itemRoot));
+                }
+
+                FileUtil.deleteFile(itemRoot);
+                result.deleted++;
+            }
+        }
+        else if(itemRoot.isDirectory())
+        {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    if(!wanted.contains(file))
+                    {
+                        if(counts != null)
+                        {
+                            String name = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                            counts.fileDeleted(name, readForStats(name, file.toFile()));
+                        }
+
+                        FileUtil.deleteFile(file.toFile());
+                        result.deleted++;
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+                {
+                    if(e != null)
+                    {
+                        throw e;
+                    }
+
+                    String[] children = dir.toFile().list();
+
+                    if(!dir.equals(rootPath) && children != null && children.length == 0)
+                    {
+                        FileUtil.deleteFile(dir.toFile());
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /*
+     * Works out the same changes as sync() from the sizes and CRC32s in the
+     * central directory, without writing anything. The existing files are
+     * read to compute their CRC32s, but entries are only inflated when the
+     * writer transforms them and the existing file does not already match
+     * the untransformed content (e.g. a file whose line endings were
+     * converted when it was merged), since only then can the central
+     * directory not tell whether it changed. sync() takes the same shortcut.
+     */
+    static Plan plan(List<ModuleContent.Entry> entries, File itemRoot, ArchiveStreamer.Destination destination, EntryWriter writer) throws IOException
+    {
+        final Plan plan = new Plan();
+        final Set<Path> wanted = new HashSet<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Result ignored = new Result();
+
+        for(ModuleContent.Entry entry : entries)
+        {
+            File dest = destination.fileFor(entry.item, entry.relativePath);
+            wanted.add(dest.toPath());
+
+            if(!dest.isFile())
+            {
+                plan.added.add(dest);
+                plan.addedBytes += entry.size;
+            }
+            else if(writer.transforms(entry.item, entry.relativePath)
+                    ? matchesUntransformed(entry, dest, writer, buffer, ignored) || renderedMatches(entry, dest, writer, buffer, plan)
+                    : dest.length() == entry.size && FileUtil.crc32(dest, buffer) == crcOf(entry, buffer, ignored))
+            {
+                plan.unchanged++;
+            }
+            else
+            {
+                plan.changed.add(dest);
+                plan.changedBytes += entry.size;
+            }
+        }
+
+        final Path rootPath = itemRoot.toPath();
+
+        if(itemRoot.isFile())
+        {
+            if(!wanted.contains(rootPath))
+            {
+                plan.removed.add(itemRoot);
+                plan.removedBytes += itemRoot.length();
+            }
+        }
+        else if(itemRoot.isDirectory())
+        {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    if(!wanted.contains(file))
+                    {
+                        plan.removed.add(file.toFile());
+                        plan.removedBytes += attrs.size();
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        return plan;
+    }
+
+    /*
+     * Whether the existing file has the size and CRC32 of the untransformed
+     * entry, and is left alone by the transforms, in which case it is what
+     * the writer would write without the entry having to be inflated
+     */
+    private static boolean matchesUntransformed(ModuleContent.Entry entry, File dest, EntryWriter writer, byte[] buffer, Result result) throws IOException
+    {
+        if(dest.length() != entry.size)
+        {
+            return false;
+        }
+
+        byte[] existing = Files.readAllBytes(dest.toPath());
+        result.bytesRead += existing.length;
+
+        if(FileUtil.crc32(existing) != crcOf(entry, buffer, result))
+        {
+            return false;
+        }
+
+        return Arrays.equals(writer.render(entry.item, entry.relativePath, new ByteArrayInputStream(existing)).content, existing);
+    }
+
+    private static boolean renderedMatches(ModuleContent.Entry entry, File dest, EntryWriter writer, byte[] buffer, Plan plan) throws IOException
+    {
+        byte[] content;
+
+        try (InputStream in = entry.open())
+        {
+            content = writer.render(entry.item, entry.relativePath, in).content;
+        }
+
+        plan.inspected++;
+
+        return dest.length() == content.length && FileUtil.crc32(dest, buffer) == FileUtil.crc32(content);
+    }
+
+    /*
+     * The CRC32 in the archive describes the content before it was
+     * transformed, so the transformed content is compared instead
+     */
+    private static void syncTransformed(ModuleContent.Entry entry, File dest, EntryWriter writer, byte[] buffer, Result result, ChangeStats.Counts counts) throws IOException
+    {
+        EntryWriter.Rendered rendered;
+
+        try (InputStream in = entry.open())
+        {
+            rendered = writer.render(entry.item, entry.relativePath, in);
+        }
+
+        byte[] content = rendered.content;
+        result.bytesRead += entry.size;
+        boolean existed = dest.isFile();
+
+        if(existed && dest.length() == content.length && FileUtil.crc32(dest, buffer) == FileUtil.crc32(content))
+        {
+            result.bytesRead += content.length;
+            result.unchanged++;
+            return;
+        }
+
+        String name = nameOf(entry);
+        byte[] oldContent = existed && counts != null ? readForStats(name, dest) : null;
+
+        makeParentDirs(dest);
+        FileUtil.unlinkBeforeWrite(dest.toPath());
+        Files.write(dest.toPath(), content);
+        writer.written(rendered);
+        result.bytesWritten += content.length;
+
+        if(existed)
+        {
+            result.changed++;
+
+            if(counts != null)
+            {
+                counts.fileChanged(name, oldContent, content);
+            }
+        }
+        else
+        {
+            result.added++;
+
+            if(counts != null)
+            {
+                counts.fileAdded(name, content);
+            }
+        }
+    }
+
+    /*
+     * Only files that may be text are read, since only their lines are
+     * counted
+     */
+    private static byte[] readForStats(String name, File file) throws IOException
+    {
+        return LineEndings.mayBeText(name) ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    /*
+     * Single-file items such as the manifest have an empty relative path
+     */
+    private static String nameOf(ModuleContent.Entry entry)
+    {
+        return entry.relativePath.isEmpty() ? entry.item.stdName : entry.relativePath;
+    }
+
+    private static long crcOf(ModuleContent.Entry entry, byte[] buffer, Result result) throws IOException
+    {
+        if(entry.crc != ModuleContent.UNKNOWN_CRC)
+        {
+            return entry.crc;
+        }
+
+        result.bytesRead += entry.size;
+
+        try (InputStream in = entry.open())
+        {
+            return FileUtil.crc32(in, buffer);
+        }
+    }
+
+    private static void write(ModuleContent.Entry entry, File dest, EntryWriter writer, byte[] buffer, Result result) throws IOException
+    {
+        makeParentDirs(dest);
+
+        try (InputStream in = entry.open())
+        {
+            result.bytesWritten += writer.write(entry.item, entry.relativePath, in, dest, buffer);
+        }
+
+        result.bytesRead += entry.size;
+    }
+
+    private static void makeParentDirs(File file) throws FileSystemException
+    {
+        File parent = file.getParentFile();
+
+        if(!parent.isDirectory() && !parent.mkdirs())
+        {
+            throw new FileSystemException(parent.getAbsolutePath(), null, "Cannot create folder");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Deletes things by first renaming them into a trash folder on the same
+ * filesystem, which is a single cheap operation, and then deleting them
+ * recursively in the background. If the rename is not possible, the
+ * deletion falls back to happening synchronously.
+ *
+ * Each run trashes into its own uniquely named folder inside the trash
+ * folder, so that nothing it trashes can land on, or be deleted along
+ * with, what an interrupted run left behind.
+ *
+ * awaitCompletion() must be called before the program exits; it rethrows
+ * the first failure of any background deletion.
+ */
+class Trash
+{
+    private final File trashDir;
+    private final File runDir;
+    private final ExecutorService executor;
+    private final List<Future<?>> pending = new ArrayList<>();
+    private final AtomicInteger counter = new AtomicInteger();
+
+    Trash(File trashDir, int numThreads)
+    {
+        this.trashDir = trashDir;
+        this.runDir = new File(trashDir, UUID.randomUUID().toString());
+        this.executor = Executors.newFixedThreadPool(numThreads, r ->
+        {
+            Thread thread = new Thread(r, "Trash");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Schedules anything left over in the trash folder by a previous run
+     * which was interrupted before it finished deleting
+     */
+    void emptyLeftovers()
+    {
+        File[] leftovers = trashDir.listFiles();
+
+        if(leftovers != null)
+        {
+            for(File leftover : leftovers)
+            {
+                if(!leftover.equals(runDir))
+                {
+                    scheduleDelete(leftover);
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the number of things moved to the trash or, where that was
+     * not possible, deleted
+     */
+    int deleteFolder(File folder) throws FileSystemException
+    {
+        File trashed = moveToTrash(folder);
+
+        if(trashed == null)
+        {
+            return FileUtil.deleteFolder(folder);
+        }
+
+        scheduleDelete(trashed);
+        return 1;
+    }
+
+    int deleteAllThingsInFolder(File folder) throws FileSystemException
+    {
+        int numDeleted = 0;
+        File[] files = folder.listFiles();
+
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                File trashed = moveToTrash(f);
+
+                if(trashed != null)
+                {
+                    scheduleDelete(trashed);
+                    numDeleted++;
+                }
+                else if(f.isDirectory())
+                {
+                    numDeleted += FileUtil.deleteFolder(f);
+                }
+                else
+                {
+                    FileUtil.deleteFile(f);
+                    numDeleted++;
+                }
+            }
+        }
+
+        return numDeleted;
+    }
+
+    void awaitCompletion() throws FileSystemException
+    {
+        List<Future<?>> toAwait;
+
+        synchronized (pending)
+        {
+            toAwait = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        try
+        {
+            for(Future<?> future : toAwait)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new FileSystemException(trashDir.getAbsolutePath(), null, "Interrupted while emptying trash");
+        }
+        catch (ExecutionException e)
+        {
+            if(e.getCause() instanceof FileSystemException)
+            {
+                throw (FileSystemException) e.getCause();
+            }
+
+            throw new FileSystemException(trashDir.getAbsolutePath(), null, String.valueOf(e.getCause()));
+        }
+
+        if(runDir.exists() && runDir.list().length == 0)
+        {
+            FileUtil.deleteFile(runDir);
+        }
+
+        if(trashDir.exists() && trashDir.list().length == 0)
+        {
+            FileUtil.deleteFile(trashDir);
+        }
+    }
+
+    void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /*
+     * Returns the new location of the file, or null if it could not be
+     * moved atomically
+     */
+    private File moveToTrash(File file)
+    {
+        if(!runDir.isDirectory() && !runDir.mkdirs())
+        {
+            return null;
+        }
+
+        File dest = new File(runDir, counter.incrementAndGet() + "-" + file.getName());
+
+        try
+        {
+            Files.move(file.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return dest;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private void scheduleDelete(final File trashed)
+    {
+        Future<?> future = executor.submit(() ->
+        {
+            if(trashed.isDirectory())
+            {
+                FileUtil.deleteFolder(trashed);
+            }
+            else
+            {
+                FileUtil.deleteFile(trashed);
+            }
+
+            return null;
+        });
+
+        synchronized (pending)
+        {
+            pending.add(future);
+        }
+    }
+}
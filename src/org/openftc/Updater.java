@@ -21,20 +21,38 @@
 
 package org.openftc;
 
-import net.lingala.zip4j.core.ZipFile;
-
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileSystemException;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Updater
 {
     enum Location
     {
         EXISTING,
-        NEW
+        NEW,
+        STAGING
     }
 
     enum Module
@@ -57,6 +75,23 @@ public class Updater
             this.name = name;
             this.isPackagedInArchive = isPackagedInArchive;
         }
+
+        /*
+         * Returns the module that a file in the libs folder of the stock SDK
+         * belongs to, or null if it is not one of the module archives
+         */
+        static Module forStockLibsFile(String fileName)
+        {
+            for(Module module : values())
+            {
+                if(module.isPackagedInArchive && (fileName.equals(module.name + AAR_SUFFIX) || fileName.equals(module.name + SOURCES_JAR_SUFFIX)))
+                {
+                    return module;
+                }
+            }
+
+            return null;
+        }
     }
 
     enum Archive
@@ -85,14 +120,101 @@ public class Updater
             this.stdName = stdName;
             this.archiveName = archiveName;
         }
+
+        /*
+         * Returns the item that an entry of the given archive belongs to,
+         * or null if the entry is not part of any item (e.g. META-INF or
+         * the compiled classes.jar in an AAR)
+         */
+        static ModuleItem forArchiveEntry(Archive archive, String entryName)
+        {
+            if(archive == Archive.SOURCE_JAR)
+            {
+                return entryName.startsWith("META-INF/") ? null : JAVA_SOURCE;
+            }
+
+            for(ModuleItem item : values())
+            {
+                if(item.archiveType != archive)
+                {
+                    continue;
+                }
+
+                if(entryName.equals(item.archiveName) || (item != MANIFEST && entryName.startsWith(item.archiveName + "/")))
+                {
+                    return item;
+                }
+            }
+
+            return null;
+        }
     }
 
     private static final String TEMP_FOLDER_NAME = "tempMergeFolder";
-    private ConsoleStatusManager csm = new ConsoleStatusManager();
+    private static final String AAR_SUFFIX = ".aar";
+    private static final String SOURCES_JAR_SUFFIX = "-sources.jar";
+    private static final String TRASH_FOLDER_NAME = ".updaterTrash";
+    private static final String STAGING_FOLDER_NAME = ".updaterStaging";
+    private static final String REPLACED_FOLDER_NAME = ".replaced";
+    private static final String JOURNAL_EXTRACTIONS = "extractions";
+    private static final String OUT_OF_DIRECT_MEMORY = "Ran out of direct memory, so the module was extracted to the temporary folder instead";
+    private static final String VERSION_NUMBERS_FILE_NAME = "versionNumbers.properties";
+    private static final double MIN_REGRESSION_MILLIS = 50;
+    private static final ModuleItem[] SYNCED_ITEMS = {
+            ModuleItem.JAVA_SOURCE,
+            ModuleItem.RESOURCES,
+            ModuleItem.ASSETS,
+            ModuleItem.LIBS,
+            ModuleItem.NATIVE_LIBS,
+            ModuleItem.MANIFEST};
+    private StepReport stepReport = new StepReport();
+    private ConsoleStatusManager csm = new ConsoleStatusManager(false, stepReport);
     private String TEMP_FOLDER_PATH;
+    private String STAGING_FOLDER_PATH;
     private String existingMergeDir;
     private String newStockDir;
     private long startTime;
+    private long startNanos;
+    private int jobs = 1;
+    private boolean direct = false;
+    private boolean sync = false;
+    private boolean skipUnchanged = false;
+    private boolean plan = false;
+    private boolean transactional = false;
+    private volatile boolean swapping = false;
+    private Map<Module, String> stagedFingerprints = new ConcurrentHashMap<>();
+    private FingerprintIndex index;
+    private BatchState batchState;
+    private String storePath;
+    private long storeMaxBytes;
+    private ExtractionStore extractionStore;
+    private long memoryStageBytes = 0;
+    private MemoryStage memoryStage;
+    private Map<Module, MemoryStage.Tree> memoryTrees = new ConcurrentHashMap<>();
+    private boolean resume = false;
+    private Journal journal;
+    private Map<Module, String> journalFingerprints = new ConcurrentHashMap<>();
+    private String transformsPath;
+    private SourceTransforms sourceTransforms;
+    private String statsPath;
+    private ChangeStats changeStats;
+    private Set<Module> modules = EnumSet.allOf(Module.class);
+    private Trash trash;
+    private CopyEngine copyEngine;
+    private int copyThreads = Runtime.getRuntime().availableProcessors();
+    private int extractThreads = Runtime.getRuntime().availableProcessors();
+    private long directBufferThreshold = CopyEngine.DEFAULT_DIRECT_BUFFER_THRESHOLD;
+    private long transferThreshold = CopyEngine.DEFAULT_TRANSFER_THRESHOLD;
+    private FileUtil.LinkMode linkMode = FileUtil.LinkMode.COPY;
+    private boolean rewriteManifests = true;
+    private boolean normalizeLineEndings = true;
+    private boolean updateVersions = true;
+    private String reportPath;
+    private String comparePath;
+    private double regressionThreshold = 0.2;
+    private EntryWriter.Summary entrySummary = new EntryWriter.Summary();
+    private final List<String> buildGradlesLeftToUpdate = new ArrayList<>();
+    private boolean versionNumbersLeftToUpdate;
 
     public Updater(String existingMergeDir, String newStockDir)
     {
@@ -100,155 +222,1656 @@ public class Updater
         this.newStockDir = newStockDir;
     }
 
+    void setJobs(int jobs)
+    {
+        this.jobs = Math.max(1, jobs);
+    }
+
+    void setDirect(boolean direct)
+    {
+        this.direct = direct;
+    }
+
+    void setSync(boolean sync)
+    {
+        this.sync = sync;
+    }
+
+    void setSkipUnchanged(boolean skipUnchanged)
+    {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /*
+     * Build the new items of every module in a staging tree and only swap
+     * them into the merge directory once all modules have succeeded
+     */
+    void setTransactional(boolean transactional)
+    {
+        this.transactional = transactional;
+    }
+
+    /*
+     * Only these modules are processed; the others are left as they are
+     */
+    void setModules(Set<Module> modules)
+    {
+        this.modules = modules;
+    }
+
+    /*
+     * Extracts the archives of each module into at most memoryStageBytes of
+     * direct buffers instead of the temporary folder. Modules that do not
+     * fit are extracted to the temporary folder as usual.
+     */
+    void setMemoryStage(long memoryStageBytes)
+    {
+        this.memoryStageBytes = memoryStageBytes;
+    }
+
+    /*
+     * Continues the run recorded in the journal of the merge directory,
+     * skipping the steps it completed, rather than starting over
+     */
+    void setResume(boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    /*
+     * Applies the transforms configured in the file at transformsPath to
+     * the Java sources and resources of the modules as they are written
+     */
+    void setSourceTransforms(String transformsPath)
+    {
+        this.transformsPath = transformsPath;
+    }
+
+    /*
+     * Keeps extracted entries in a store at storePath between runs, so that
+     * entries that did not change need not be inflated again
+     */
+    void setExtractionStore(String storePath, long storeMaxBytes)
+    {
+        this.storePath = storePath;
+        this.storeMaxBytes = storeMaxBytes;
+    }
+
+    /*
+     * Counts the changed files and lines of every module item, and writes
+     * them to the JSON file at statsPath
+     */
+    void setStatsPath(String statsPath)
+    {
+        this.statsPath = statsPath;
+        this.changeStats = statsPath != null ? new ChangeStats() : null;
+    }
+
+    /*
+     * Shares state with the other runs of a batch
+     */
+    void setBatchState(BatchState batchState)
+    {
+        this.batchState = batchState;
+    }
+
+    /*
+     * Only work out and print what would change, without changing anything
+     */
+    void setPlan(boolean plan)
+    {
+        this.plan = plan;
+    }
+
+    void setCopyThreads(int copyThreads)
+    {
+        this.copyThreads = Math.max(1, copyThreads);
+    }
+
+    void setExtractThreads(int extractThreads)
+    {
+        this.extractThreads = Math.max(1, extractThreads);
+    }
+
+    /*
+     * The file sizes (in bytes) from which files are copied through direct
+     * buffers and with transferTo
+     */
+    void setCopyThresholds(long directBufferThreshold, long transferThreshold)
+    {
+        this.directBufferThreshold = directBufferThreshold;
+        this.transferThreshold = transferThreshold;
+    }
+
+    /*
+     * Only used for libs and native libs, which are large binaries that
+     * are never edited in place
+     */
+    void setLinkMode(FileUtil.LinkMode linkMode)
+    {
+        this.linkMode = linkMode;
+    }
+
+    void setRewriteManifests(boolean rewriteManifests)
+    {
+        this.rewriteManifests = rewriteManifests;
+    }
+
+    void setNormalizeLineEndings(boolean normalizeLineEndings)
+    {
+        this.normalizeLineEndings = normalizeLineEndings;
+    }
+
+    void setUpdateVersions(boolean updateVersions)
+    {
+        this.updateVersions = updateVersions;
+    }
+
+    void setReportPath(String reportPath)
+    {
+        this.reportPath = reportPath;
+    }
+
+    /*
+     * Steps that take more than the threshold (a fraction) longer than in
+     * the report at comparePath are reported at the end of the run
+     */
+    void setCompare(String comparePath, double regressionThreshold)
+    {
+        this.comparePath = comparePath;
+        this.regressionThreshold = regressionThreshold;
+    }
+
+    void setAsyncDelete(boolean asyncDelete)
+    {
+        if(asyncDelete)
+        {
+            trash = new Trash(new File(existingMergeDir, TRASH_FOLDER_NAME), Runtime.getRuntime().availableProcessors());
+        }
+    }
+
     void run()
     {
         startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        copyEngine = new CopyEngine(copyThreads, normalizeLineEndings, directBufferThreshold, transferThreshold);
 
         preliminaryCheckExistingMergeDir();
         preliminaryCheckNewStockDir();
-        prepareTempDir();
 
-        for(Module module : Module.values())
+        if(transformsPath != null)
+        {
+            loadSourceTransforms();
+        }
+
+        if(plan)
+        {
+            planAllModules();
+            return;
+        }
+
+        if(trash != null)
+        {
+            trash.emptyLeftovers();
+        }
+
+        /*
+         * A transactional run leaves nothing behind to resume when it fails
+         */
+        if(!transactional)
+        {
+            openJournal();
+        }
+
+        if(usesTempDir())
+        {
+            prepareTempDir();
+
+            if(memoryStageBytes > 0)
+            {
+                memoryStage = new MemoryStage(memoryStageBytes);
+            }
+
+            if(storePath != null)
+            {
+                openExtractionStore();
+            }
+        }
+
+        if(transactional)
+        {
+            prepareStagingDir();
+        }
+
+        if(skipUnchanged)
+        {
+            loadFingerprintIndex();
+        }
+
+        if(jobs > 1)
+        {
+            processModulesConcurrently();
+        }
+        else
+        {
+            for(Module module : modules)
+            {
+                processModule(module, csm);
+            }
+        }
+
+        if(transactional)
+        {
+            swapInStagedModules();
+        }
+
+        if(updateVersions)
+        {
+            updateVersions();
+        }
+
+        if(index != null)
+        {
+            saveFingerprintIndex();
+        }
+
+        if(trash != null)
+        {
+            awaitTrash();
+        }
+
+        if(journal != null)
+        {
+            deleteJournal();
+        }
+
+        copyEngine.shutdown();
+
+        if(extractionStore != null)
+        {
+            trimExtractionStore();
+        }
+
+        if(reportPath != null)
+        {
+            writeStepReport();
+        }
+
+        if(changeStats != null)
+        {
+            writeChangeStats();
+        }
+
+        List<String> regressions = null;
+
+        if(comparePath != null)
         {
-            processModule(module);
+            regressions = compareStepReport();
         }
 
         checklist();
+
+        if(changeStats != null)
+        {
+            System.out.println();
+            changeStats.printTable();
+        }
+
+        if(regressions != null)
+        {
+            printRegressions(regressions);
+        }
     }
 
-    private void processModule(Module module)
+    private void planAllModules()
     {
-        System.out.print((char)27 + "[47m");
-        System.out.print((char)27 + "[34m");
+        Map<Module, SyncEngine.Plan> plans = new LinkedHashMap<>();
+        SyncEngine.Plan total = new SyncEngine.Plan();
+
+        for(Module module : modules)
+        {
+            csm.banner("Planning module: " + "'" + module.name + "'");
+            csm.beginModule(module.name);
+
+            try
+            {
+                SyncEngine.Plan modulePlan = planModule(module);
+                plans.put(module, modulePlan);
+                total.add(modulePlan);
+            }
+            finally
+            {
+                csm.endModule();
+            }
+        }
+
+        long endTime = System.currentTimeMillis();
+        DecimalFormat format = new DecimalFormat("#.##");
+
         System.out.println();
-        System.out.println("===============================================================");
-        System.out.println("= Processing module: " + "'" + module.name + "'");
-        System.out.println("===============================================================");
-        System.out.print((char)27 + "[0m");
+        System.out.println("Plan completed in " + format.format((endTime - startTime) / 1000d) + " seconds; nothing was changed");
+        System.out.println();
+        System.out.println(String.format("%-20s %18s %18s %18s %10s", "Module", "Added", "Changed", "Removed", "Unchanged"));
 
-        /*
-         * Extract the archives
-         */
-        extractAarToTempDir(module);
-        extractSourcesJarToTempDir(module);
+        for(Map.Entry<Module, SyncEngine.Plan> entry : plans.entrySet())
+        {
+            printPlanRow(entry.getKey().name, entry.getValue());
+        }
 
-        /*
-         * Source code
-         */
-        deleteOldSourceForModule(module);
-        copySourceForModule(module);
+        printPlanRow("Total", total);
 
-        /*
-         * Resources
-         */
-        deleteOldResourcesForModule(module);
-        copyNewResourcesForModule(module);
+        if(total.inspected > 0)
+        {
+            System.out.println();
+            System.out.println("Inflated " + total.inspected + " entries whose content is transformed when written, to compare them");
+        }
+    }
 
-        /*
-         * Assets
-         */
-        deleteOldAssetsForModule(module);
-        copyNewAssetsForModule(module);
+    private static void printPlanRow(String name, SyncEngine.Plan plan)
+    {
+        System.out.println(String.format("%-20s %18s %18s %18s %10d",
+                name,
+                plan.added.size() + " (" + FileUtil.formatSize(plan.addedBytes) + ")",
+                plan.changed.size() + " (" + FileUtil.formatSize(plan.changedBytes) + ")",
+                plan.removed.size() + " (" + FileUtil.formatSize(plan.removedBytes) + ")",
+                plan.unchanged));
+    }
 
-        /*
-         * Libs
-         */
-        deleteOldLibsForModule(module);
-        copyNewLibsForModule(module);
+    private SyncEngine.Plan planModule(Module module)
+    {
+        SyncEngine.Plan modulePlan = new SyncEngine.Plan();
+        ModuleContent content = null;
 
-        /*
-         * Native libs
-         */
-        deleteOldNativeLibsForModule(module);
-        copyNewNativeLibsForModule(module);
+        if(module.isPackagedInArchive)
+        {
+            planVersionForModule(module);
+        }
 
-        /*
-         * Manifest
-         */
-        deleteOldManifestForModule(module);
-        copyNewManifestForModule(module);
+        try
+        {
+            content = openNewContentForModule(module);
+
+            for(ModuleItem item : SYNCED_ITEMS)
+            {
+                SyncEngine.Plan itemPlan = planItemForModule(module, item, content);
+
+                if(itemPlan != null)
+                {
+                    modulePlan.add(itemPlan);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+        finally
+        {
+            closeQuietly(content);
+        }
+
+        return modulePlan;
     }
 
-    private void copyNewManifestForModule(Module module)
+    private SyncEngine.Plan planItemForModule(Module module, ModuleItem item, ModuleContent content)
     {
-        csm.stepMsg("Copying new manifest file for module '" + module.name + "'");
+        csm.stepMsg("Comparing '" + item.stdName + "' for module '" + module.name + "'", item);
 
-        String newManifestFilePath = getItemPath(Location.NEW, module, ModuleItem.MANIFEST);
-        String destPath = getItemPath(Location.EXISTING, module, ModuleItem.MANIFEST);
+        List<ModuleContent.Entry> entries = content.entriesFor(item);
+        File itemRoot = getFileForItem(Location.EXISTING, module, item);
+
+        if(entries.isEmpty() && !itemRoot.exists())
+        {
+            csm.na();
+            return null;
+        }
 
         try
         {
-            Files.copy(Paths.get(newManifestFilePath), Paths.get(destPath));
+            /*
+             * A writer with its own summary, so that nothing it renders ends
+             * up in the totals of a real run
+             */
+            EntryWriter writer = new EntryWriter(module, rewriteManifests, normalizeLineEndings, new EntryWriter.Summary(), sourceTransforms);
+            SyncEngine.Plan itemPlan = SyncEngine.plan(entries, itemRoot, (i, relativePath) -> getFileForItemEntry(Location.EXISTING, module, i, relativePath), writer);
             csm.ok();
+            csm.detail(itemPlan.toString());
+            printPlannedFiles("+", itemPlan.added);
+            printPlannedFiles("~", itemPlan.changed);
+            printPlannedFiles("-", itemPlan.removed);
+            return itemPlan;
         }
         catch (Exception e)
         {
             csm.fail(e);
+            return null;
         }
     }
 
-    private void deleteOldManifestForModule(Module module)
+    private void printPlannedFiles(String marker, List<File> files)
     {
-        csm.stepMsg("Deleting manifest for module '" + module.name + "'");
+        Path root = new File(existingMergeDir).toPath();
+
+        for(File file : files)
+        {
+            csm.detail(marker + " " + root.relativize(file.toPath()));
+        }
+    }
 
-        File manifestFile = getFileForItem(Location.EXISTING, module, ModuleItem.MANIFEST);
+    private void planVersionForModule(Module module)
+    {
+        csm.stepMsg("Comparing version of module '" + module.name + "'");
 
         try
         {
-            if(!manifestFile.delete())
+            VersionUpdater.Version version = VersionUpdater.readFromAar(makeFileForModuleAar(module));
+            File buildGradle = new File(getItemPath(Location.EXISTING, module, ModuleItem.ROOT_DIR), "build.gradle");
+
+            if(version == null || !buildGradle.exists())
             {
                 csm.na();
+                return;
             }
-            else
+
+            VersionUpdater.Version current = VersionUpdater.readFromBuildGradle(buildGradle);
+
+            if(current == null)
             {
-                csm.ok();
+                csm.warn("No versionCode and versionName in the defaultConfig block of build.gradle, it has to be updated by hand");
+                return;
+            }
+            else if(current.code.equals(version.code) && current.name.equals(version.name))
+            {
+                csm.na("Already up to date");
+                return;
             }
+
+            csm.ok();
+            csm.detail(current + " -> " + version);
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    /*
+     * Each module writes only to its own tree (and its own folders in the
+     * temporary directory), so modules can be processed independently. The
+     * output of each module is buffered and printed as one group, in module
+     * order, once that module has finished.
+     */
+    private void processModulesConcurrently()
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, modules.size()));
+        List<Future<ConsoleStatusManager>> results = new ArrayList<>();
+
+        for(final Module module : modules)
+        {
+            results.add(executor.submit(() ->
+            {
+                ConsoleStatusManager moduleCsm = new ConsoleStatusManager(true, stepReport);
+                processModule(module, moduleCsm);
+                return moduleCsm;
+            }));
+        }
+
+        try
+        {
+            for(Future<ConsoleStatusManager> result : results)
+            {
+                result.get().flush();
+            }
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private void processModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.banner("Processing module: " + "'" + module.name + "'");
+        csm.beginModule(module.name);
+
+        try
+        {
+            processModuleSteps(module, csm);
+        }
+        finally
+        {
+            csm.endModule();
+        }
+    }
+
+    private void processModuleSteps(Module module, ConsoleStatusManager csm)
+    {
+        String inputFingerprint = null;
+
+        if(index != null)
+        {
+            inputFingerprint = checkFingerprintsForModule(module, csm);
+
+            if(inputFingerprint == null)
+            {
+                return;
+            }
+        }
+
+        if(transactional)
+        {
+            createStagingTreeForModule(module, csm);
+        }
+
+        if(journal != null)
+        {
+            resumeModuleFromJournal(module, inputFingerprint, csm);
+        }
+
+        if(sync)
+        {
+            processModuleSync(module, csm);
+        }
+        else if(direct && module.isPackagedInArchive)
+        {
+            processModuleDirect(module, csm);
+        }
+        else
+        {
+            processModuleViaTempDir(module, csm);
+        }
+
+        if(index != null && transactional)
+        {
+            stagedFingerprints.put(module, inputFingerprint);
+        }
+        else if(index != null)
+        {
+            recordFingerprintsForModule(module, inputFingerprint, csm);
+        }
+    }
+
+    /*
+     * The steps of the module are recorded in the journal against the
+     * fingerprint of its inputs, so that the steps recorded by a run with
+     * other inputs are not skipped
+     */
+    private void resumeModuleFromJournal(Module module, String inputFingerprint, ConsoleStatusManager csm)
+    {
+        String fingerprint;
+
+        try
+        {
+            fingerprint = inputFingerprint != null ? inputFingerprint : fingerprintInputsForModule(module);
+        }
+        catch (Exception e)
+        {
+            csm.stepMsg("Fingerprinting module '" + module.name + "' for the journal");
+            csm.fail(e);
+            return;
+        }
+
+        journalFingerprints.put(module, fingerprint);
+        int completed = journal.countDone(module.name, fingerprint);
+
+        if(completed > 0)
+        {
+            csm.stepMsg("Resuming module '" + module.name + "' from the journal");
+            csm.ok();
+            csm.detail("Skipping " + completed + " steps that the interrupted run completed");
+        }
+    }
+
+    /*
+     * Returns the fingerprint of the module's inputs if it needs to be
+     * processed, or null if it can be skipped
+     */
+    private String checkFingerprintsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Comparing module '" + module.name + "' against the fingerprint index");
+
+        try
+        {
+            String inputFingerprint = fingerprintInputsForModule(module);
+
+            if(index.matches(module.name, inputFingerprint, fingerprintTreeForModule(module)))
+            {
+                csm.na("Skipping, the archives and the merged tree are unchanged since the last run");
+                return null;
+            }
+
+            csm.ok();
+            return inputFingerprint;
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+            return null;
+        }
+    }
+
+    private void recordFingerprintsForModule(Module module, String inputFingerprint, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Recording fingerprints for module '" + module.name + "'");
+
+        try
+        {
+            index.put(module.name, inputFingerprint, fingerprintTreeForModule(module));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private String fingerprintInputsForModule(Module module) throws IOException
+    {
+        String fingerprint;
+
+        if(module.isPackagedInArchive)
+        {
+            fingerprint = FingerprintIndex.fingerprintArchives(makeFileForModuleAar(module), makeFileForModuleSourcesJar(module));
+        }
+        else
+        {
+            fingerprint = FingerprintIndex.fingerprintTrees(getItemFilesForModule(Location.NEW, module));
+        }
+
+        fingerprint = FingerprintIndex.fingerprintStrings(fingerprint, outputSettings());
+
+        if(sourceTransforms != null)
+        {
+            fingerprint = FingerprintIndex.fingerprintStrings(fingerprint, sourceTransforms.describe(module));
+        }
+
+        return fingerprint;
+    }
+
+    /*
+     * The settings that change what is written for the same inputs, so
+     * that output made with other settings is neither skipped nor resumed
+     */
+    private String outputSettings()
+    {
+        return rewriteManifests + "|" + normalizeLineEndings + "|" + linkMode;
+    }
+
+    private String fingerprintTreeForModule(Module module) throws IOException
+    {
+        return FingerprintIndex.fingerprintTrees(getItemFilesForModule(Location.EXISTING, module));
+    }
+
+    private File[] getItemFilesForModule(Location location, Module module)
+    {
+        File[] files = new File[SYNCED_ITEMS.length];
+
+        for(int i = 0; i < SYNCED_ITEMS.length; i++)
+        {
+            files[i] = getFileForItem(location, module, SYNCED_ITEMS[i]);
+        }
+
+        return files;
+    }
+
+    private void processModuleViaTempDir(Module module, ConsoleStatusManager csm)
+    {
+        if(memoryStage != null && module.isPackagedInArchive)
+        {
+            reserveMemoryForModule(module, csm);
+        }
+
+        /*
+         * Extract the archives
+         */
+        extractAarToTempDir(module, csm);
+        extractSourcesJarToTempDir(module, csm);
+
+        /*
+         * Source code
+         */
+        runStep(module, "delete-java", () -> deleteOldSourceForModule(module, csm), csm);
+        runStep(module, "copy-java", () -> copySourceForModule(module, csm), csm);
+
+        /*
+         * Resources
+         */
+        runStep(module, "delete-res", () -> deleteOldResourcesForModule(module, csm), csm);
+        runStep(module, "copy-res", () -> copyNewResourcesForModule(module, csm), csm);
+
+        /*
+         * Assets
+         */
+        runStep(module, "delete-assets", () -> deleteOldAssetsForModule(module, csm), csm);
+        runStep(module, "copy-assets", () -> copyNewAssetsForModule(module, csm), csm);
+
+        /*
+         * Libs
+         */
+        runStep(module, "delete-libs", () -> deleteOldLibsForModule(module, csm), csm);
+        runStep(module, "copy-libs", () -> copyNewLibsForModule(module, csm), csm);
+
+        /*
+         * Native libs
+         */
+        runStep(module, "delete-jniLibs", () -> deleteOldNativeLibsForModule(module, csm), csm);
+        runStep(module, "copy-jniLibs", () -> copyNewNativeLibsForModule(module, csm), csm);
+
+        /*
+         * Manifest
+         */
+        runStep(module, "delete-manifest", () -> deleteOldManifestForModule(module, csm), csm);
+        runStep(module, "copy-manifest", () -> copyNewManifestForModule(module, csm), csm);
+
+        MemoryStage.Tree tree = memoryTrees.remove(module);
+
+        if(tree != null)
+        {
+            tree.release();
+        }
+    }
+
+    private void reserveMemoryForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Reserving memory to stage module '" + module.name + "'");
+
+        try
+        {
+            long size = MemoryStage.uncompressedSize(makeFileForModuleAar(module), makeFileForModuleSourcesJar(module));
+            MemoryStage.Tree tree = memoryStage.reserve(size);
+
+            if(tree == null)
+            {
+                csm.na("The " + FileUtil.formatSize(size) + " of its archives do not fit under the memory cap, using the temporary folder");
+                return;
+            }
+
+            memoryTrees.put(module, tree);
+            csm.ok();
+            csm.detail(FileUtil.formatSize(size));
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    /*
+     * Same as the normal flow, except the archives are streamed straight
+     * into the module instead of going through the temporary folder
+     */
+    private void processModuleDirect(Module module, ConsoleStatusManager csm)
+    {
+        runStep(module, "delete-java", () -> deleteOldSourceForModule(module, csm), csm);
+        runStep(module, "delete-res", () -> deleteOldResourcesForModule(module, csm), csm);
+        runStep(module, "delete-assets", () -> deleteOldAssetsForModule(module, csm), csm);
+        runStep(module, "delete-libs", () -> deleteOldLibsForModule(module, csm), csm);
+        runStep(module, "delete-jniLibs", () -> deleteOldNativeLibsForModule(module, csm), csm);
+        runStep(module, "delete-manifest", () -> deleteOldManifestForModule(module, csm), csm);
+
+        runStep(module, "stream-aar", () -> streamArchiveForModule(module, Archive.AAR, csm), csm);
+        runStep(module, "stream-sources", () -> streamArchiveForModule(module, Archive.SOURCE_JAR, csm), csm);
+    }
+
+    /*
+     * Skips a step that the interrupted run being resumed already completed
+     * from the same inputs, and otherwise runs it and records it in the
+     * journal. A step that fails ends the process, so only the steps that
+     * completed are ever recorded.
+     */
+    private void runStep(Module module, String step, Runnable action, ConsoleStatusManager csm)
+    {
+        String fingerprint = journal != null ? journalFingerprints.get(module) : null;
+
+        if(fingerprint == null)
+        {
+            action.run();
+            return;
+        }
+
+        if(journal.isDone(module.name, step, fingerprint))
+        {
+            return;
+        }
+
+        action.run();
+
+        try
+        {
+            journal.recordDone(module.name, step, fingerprint);
+        }
+        catch (Exception e)
+        {
+            csm.stepMsg("Recording step '" + step + "' of module '" + module.name + "' in the journal");
+            csm.fail(e);
+        }
+    }
+
+    private void streamArchiveForModule(Module module, Archive archive, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Streaming '" + module.name + "' " + (archive == Archive.AAR ? "AAR" : "sources JAR") + " into merge directory");
+
+        File archiveFile = archive == Archive.AAR ? makeFileForModuleAar(module) : makeFileForModuleSourcesJar(module);
+
+        try
+        {
+            ArchiveStreamer.Result result = ArchiveStreamer.stream(archiveFile, archive, (item, relativePath) -> getFileForItemEntry(writeLocation(), module, item, relativePath), newEntryWriter(module), csm.progress());
+            csm.recordIo(result.bytesRead, result.bytesWritten, result.files);
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    /*
+     * Only writes the files that were added or changed, and only deletes
+     * the files that were removed, so that unchanged files are not touched
+     */
+    private void processModuleSync(Module module, ConsoleStatusManager csm)
+    {
+        ModuleContent content = null;
+
+        try
+        {
+            content = openNewContentForModule(module);
+
+            for(ModuleItem item : SYNCED_ITEMS)
+            {
+                final ModuleContent itemContent = content;
+                runStep(module, "sync-" + item.stdName, () -> syncItemForModule(module, item, itemContent, csm), csm);
+            }
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+        finally
+        {
+            closeQuietly(content);
+        }
+    }
+
+    private void syncItemForModule(Module module, ModuleItem item, ModuleContent content, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Synchronizing '" + item.stdName + "' for module '" + module.name + "'", item);
+
+        List<ModuleContent.Entry> entries = content.entriesFor(item);
+        File itemRoot = getFileForItem(writeLocation(), module, item);
+
+        if(entries.isEmpty() && !itemRoot.exists())
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            ChangeStats.Counts counts = changeStats != null ? changeStats.countsFor(module.name, item.stdName) : null;
+            SyncEngine.Result result = SyncEngine.sync(entries, itemRoot, (i, relativePath) -> getFileForItemEntry(writeLocation(), module, i, relativePath), newEntryWriter(module), counts, csm.progress());
+            csm.recordIo(result.bytesRead, result.bytesWritten, result.touched());
+            csm.ok();
+            csm.detail(result.toString());
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private ModuleContent openNewContentForModule(Module module) throws IOException
+    {
+        if(module.isPackagedInArchive)
+        {
+            return ModuleContent.ofArchives(makeFileForModuleAar(module), makeFileForModuleSourcesJar(module));
+        }
+
+        Map<ModuleItem, File> itemRoots = new EnumMap<>(ModuleItem.class);
+
+        for(ModuleItem item : SYNCED_ITEMS)
+        {
+            itemRoots.put(item, getFileForItem(Location.NEW, module, item));
+        }
+
+        return ModuleContent.ofDirectories(itemRoots);
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            if(closeable != null)
+            {
+                closeable.close();
+            }
+        }
+        catch (IOException ignored)
+        {
+
+        }
+    }
+
+    private void copyNewManifestForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Copying new manifest file for module '" + module.name + "'", ModuleItem.MANIFEST);
+
+        File newManifestFile = getFileForItem(Location.NEW, module, ModuleItem.MANIFEST);
+        File destFile = getFileForItem(writeLocation(), module, ModuleItem.MANIFEST);
+        MemoryStage.Tree tree = memoryTrees.get(module);
+
+        try (InputStream in = tree != null ? tree.open(memoryPathForItem(module, ModuleItem.MANIFEST)) : new FileInputStream(newManifestFile))
+        {
+            if(in == null)
+            {
+                throw new FileNotFoundException(newManifestFile + " (staged in memory)");
+            }
+
+            long read = tree != null ? tree.size(memoryPathForItem(module, ModuleItem.MANIFEST)) : newManifestFile.length();
+            long written = newEntryWriter(module).write(ModuleItem.MANIFEST, "", in, destFile, new byte[8192]);
+            csm.recordIo(read, written, 1);
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void deleteOldManifestForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Deleting manifest for module '" + module.name + "'", ModuleItem.MANIFEST);
+
+        File manifestFile = getFileForItem(writeLocation(), module, ModuleItem.MANIFEST);
+
+        try
+        {
+            if(!manifestFile.delete())
+            {
+                csm.na();
+            }
+            else
+            {
+                csm.recordIo(0, 0, 1);
+                csm.ok();
+            }
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void copyNewNativeLibsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Copying new native libs for module '" + module.name + "'", ModuleItem.NATIVE_LIBS);
+
+        if(!newItemExists(module, ModuleItem.NATIVE_LIBS))
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            CopyEngine.Stats stats = copyNewItemForModule(module, ModuleItem.NATIVE_LIBS, linkMode, csm);
+            csm.recordIo(stats.bytes.get(), stats.bytes.get(), stats.files.get());
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void deleteOldNativeLibsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Deleting native libs for module '" + module.name + "'", ModuleItem.NATIVE_LIBS);
+
+        File jniLibsFolder = getFileForItem(writeLocation(), module, ModuleItem.NATIVE_LIBS);
+
+        if(!jniLibsFolder.exists())
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            csm.recordIo(0, 0, deleteFolder(jniLibsFolder));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void copyNewLibsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Copying new libs for module '" + module.name + "'", ModuleItem.LIBS);
+
+        if(!newItemExists(module, ModuleItem.LIBS))
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            CopyEngine.Stats stats = copyNewItemForModule(module, ModuleItem.LIBS, linkMode, csm);
+            csm.recordIo(stats.bytes.get(), stats.bytes.get(), stats.files.get());
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void deleteOldLibsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Deleting libs for module '" + module.name + "'", ModuleItem.LIBS);
+
+        File libsFolder = getFileForItem(writeLocation(), module, ModuleItem.LIBS);
+
+        if(!libsFolder.exists())
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            csm.recordIo(0, 0, deleteAllThingsInFolder(libsFolder));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void copyNewAssetsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Copying new assets for module '" + module.name + "'", ModuleItem.ASSETS);
+
+        if(!newItemExists(module, ModuleItem.ASSETS))
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            CopyEngine.Stats stats = copyNewItemForModule(module, ModuleItem.ASSETS, FileUtil.LinkMode.COPY, csm);
+            csm.recordIo(stats.bytes.get(), stats.bytes.get(), stats.files.get());
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void deleteOldAssetsForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Deleting assets for module '" + module.name + "'", ModuleItem.ASSETS);
+
+        File assetsFolder = getFileForItem(writeLocation(), module, ModuleItem.ASSETS);
+
+        if(!assetsFolder.exists())
+        {
+            csm.na();
+            return;
+        }
+
+        try
+        {
+            csm.recordIo(0, 0, deleteAllThingsInFolder(assetsFolder));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void copyNewResourcesForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Copying new resources for module '" + module.name + "'", ModuleItem.RESOURCES);
+
+        try
+        {
+            // Some modules may not have resources
+            if (newItemExists(module, ModuleItem.RESOURCES))
+            {
+                CopyEngine.Stats stats = copyNewItemForModule(module, ModuleItem.RESOURCES, FileUtil.LinkMode.COPY, csm);
+                csm.recordIo(stats.bytes.get(), stats.bytes.get(), stats.files.get());
+            }
+
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void deleteOldResourcesForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Deleting resources for module '" + module.name + "'", ModuleItem.RESOURCES);
+
+        try
+        {
+            csm.recordIo(0, 0, deleteAllThingsInFolder(getFileForItem(writeLocation(), module, ModuleItem.RESOURCES)));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void deleteOldSourceForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Deleting Java code for module " + module.name, ModuleItem.JAVA_SOURCE);
+
+        try
+        {
+            csm.recordIo(0, 0, deleteAllThingsInFolder(getFileForItem(writeLocation(), module, ModuleItem.JAVA_SOURCE)));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void copySourceForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Copying new Java code for module " + module.name, ModuleItem.JAVA_SOURCE);
+
+        try
+        {
+            CopyEngine.Stats stats = copyNewItemForModule(module, ModuleItem.JAVA_SOURCE, FileUtil.LinkMode.COPY, csm);
+            csm.recordIo(stats.bytes.get(), stats.bytes.get(), stats.files.get());
+
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void preliminaryCheckExistingMergeDir()
+    {
+        csm.stepMsg("Running preliminary check on existing merge directory");
+
+        for(Module module : Module.values())
+        {
+            if(!getFileForItem(Location.EXISTING, module, ModuleItem.ROOT_DIR).exists())
+            {
+                csm.fail();
+            }
+        }
+
+        if(!getFileForItem(Location.EXISTING, Module.FTCROBOTCONTROLLER, ModuleItem.ROOT_DIR).exists())
+        {
+            csm.fail();
+        }
+
+        csm.ok();
+    }
+
+    private void preliminaryCheckNewStockDir()
+    {
+        csm.stepMsg("Running preliminary check on new stock SDK");
+
+        for(Module module : Module.values())
+        {
+            if(!module.isPackagedInArchive)
+            {
+                continue;
+            }
+
+            if(!(makeFileForModuleAar(module).exists() && makeFileForModuleSourcesJar(module).exists()))
+            {
+                csm.fail();
+            }
+        }
+
+        csm.ok();
+    }
+
+    private void updateVersions()
+    {
+        Map<String, VersionUpdater.Version> versions = new LinkedHashMap<>();
+
+        for(Module module : modules)
+        {
+            if(!module.isPackagedInArchive)
+            {
+                continue;
+            }
+
+            csm.beginModule(module.name);
+            csm.stepMsg("Updating version in build.gradle for module '" + module.name + "'");
+            csm.endModule();
+
+            try
+            {
+                VersionUpdater.Version version = VersionUpdater.readFromAar(makeFileForModuleAar(module));
+                File buildGradle = new File(getItemPath(Location.EXISTING, module, ModuleItem.ROOT_DIR), "build.gradle");
+
+                if(version == null || !buildGradle.exists())
+                {
+                    csm.na();
+                    continue;
+                }
+
+                versions.put(module.name, version);
+
+                if(VersionUpdater.readFromBuildGradle(buildGradle) == null)
+                {
+                    buildGradlesLeftToUpdate.add(module.name);
+                    csm.warn("No versionCode and versionName in the defaultConfig block, update it by hand");
+                }
+                else if(VersionUpdater.updateBuildGradle(buildGradle, version))
+                {
+                    csm.ok();
+                    csm.detail(version.toString());
+                }
+                else
+                {
+                    csm.na("Already up to date");
+                }
+            }
+            catch (Exception e)
+            {
+                csm.fail(e);
+            }
+        }
+
+        csm.stepMsg("Updating " + VERSION_NUMBERS_FILE_NAME);
+
+        File versionNumbers = new File(existingMergeDir, VERSION_NUMBERS_FILE_NAME);
+
+        if(!versionNumbers.exists())
+        {
+            csm.na();
+            return;
+        }
+        else if(versions.isEmpty())
+        {
+            csm.na("No library modules were updated");
+            return;
+        }
+
+        try
+        {
+            VersionUpdater.VersionNumbersUpdate update = VersionUpdater.updateVersionNumbers(versionNumbers, versions);
+
+            if(update.matchedKeys == 0 && !versions.isEmpty())
+            {
+                versionNumbersLeftToUpdate = true;
+                csm.warn("No keys named <module>VersionCode or <module>VersionName, update it by hand");
+            }
+            else if(update.changed)
+            {
+                csm.ok();
+            }
+            else
+            {
+                csm.na("Already up to date");
+            }
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void writeChangeStats()
+    {
+        csm.stepMsg("Writing change statistics");
+
+        try
+        {
+            changeStats.write(new File(statsPath));
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void writeStepReport()
+    {
+        csm.stepMsg("Writing step report");
+
+        try
+        {
+            for(Map.Entry<CopyEngine.Route, AtomicLong> route : copyEngine.getTotals().routeBytes.entrySet())
+            {
+                stepReport.putTotal("copiedBytes." + route.getKey().name().toLowerCase(Locale.ROOT), route.getValue().get());
+            }
+
+            stepReport.write(new File(reportPath), (System.nanoTime() - startNanos) / 1e6);
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private List<String> compareStepReport()
+    {
+        csm.stepMsg("Comparing against previous step report");
+
+        try
+        {
+            List<String> regressions = stepReport.compare(StepReport.readSteps(new File(comparePath)), regressionThreshold, MIN_REGRESSION_MILLIS);
+            csm.ok();
+            return regressions;
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+            return null;
+        }
+    }
+
+    private void printRegressions(List<String> regressions)
+    {
+        if(regressions.isEmpty())
+        {
+            System.out.println("No steps got slower than in " + comparePath);
+            return;
+        }
+
+        System.out.print((char)27 + "[31m"); //red
+        System.out.println("Steps that got slower than in " + comparePath + ":");
+
+        for(String regression : regressions)
+        {
+            System.out.println("  " + regression);
+        }
+
+        System.out.print((char)27 + "[0m"); //end red
+    }
+
+    private void awaitTrash()
+    {
+        csm.stepMsg("Waiting for deletion of old files to finish");
+
+        try
+        {
+            trash.awaitCompletion();
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+        finally
+        {
+            trash.shutdown();
+        }
+    }
+
+    private int deleteFolder(File folder) throws FileSystemException
+    {
+        if(trash != null)
+        {
+            return trash.deleteFolder(folder);
+        }
+
+        return FileUtil.deleteFolder(folder);
+    }
+
+    private int deleteAllThingsInFolder(File folder) throws FileSystemException
+    {
+        if(trash != null)
+        {
+            return trash.deleteAllThingsInFolder(folder);
+        }
+
+        return FileUtil.deleteAllThingsInFolder(folder);
+    }
+
+    private void loadFingerprintIndex()
+    {
+        csm.stepMsg("Loading fingerprint index");
+
+        if(batchState != null && batchState.index != null)
+        {
+            index = batchState.index;
+            csm.na("Kept in memory from the previous batch step");
+            return;
+        }
+
+        try
+        {
+            index = FingerprintIndex.load(new File(existingMergeDir, FingerprintIndex.FILE_NAME));
+
+            if(batchState != null)
+            {
+                batchState.index = index;
+            }
+
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void saveFingerprintIndex()
+    {
+        csm.stepMsg("Saving fingerprint index");
+
+        try
+        {
+            index.save();
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+    }
+
+    private void prepareTempDir()
+    {
+        TEMP_FOLDER_PATH = existingMergeDir + File.separator + TEMP_FOLDER_NAME;
+
+        File tempDir = new File(TEMP_FOLDER_PATH);
+
+        /*
+         * The extractions of the previous steps of a batch are kept, so that
+         * unchanged archives need not be extracted again
+         */
+        if(batchState != null && batchState.tempDirPrepared && tempDir.isDirectory())
+        {
+            return;
+        }
+
+        csm.stepMsg("Deleting temporary folder in merge directory if it exists");
+
+        /*
+         * The extractions of the interrupted run are reused if their
+         * archives did not change since
+         */
+        if(journal != null && journal.isResuming() && tempDir.isDirectory())
+        {
+            csm.na("Keeping it to resume the interrupted run");
+            return;
+        }
+
+        try
+        {
+            if(tempDir.exists())
+            {
+                deleteFolder(tempDir);
+            }
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+
+        csm.stepMsg("Creating temporary folder in merge directory");
+
+        if(tempDir.mkdir())
+        {
+            csm.ok();
+        }
+        else
+        {
+            csm.fail();
+        }
+
+        if(batchState != null)
+        {
+            batchState.tempDirPrepared = true;
+        }
+    }
+
+    /*
+     * Staging trees left behind by a run that failed are discarded. Should
+     * this run fail before the swap starts, its staging trees are discarded
+     * on exit, so that the merge directory is left exactly as it was.
+     */
+    private void prepareStagingDir()
+    {
+        STAGING_FOLDER_PATH = existingMergeDir + File.separator + STAGING_FOLDER_NAME;
+
+        final File stagingDir = new File(STAGING_FOLDER_PATH);
+
+        csm.stepMsg("Deleting staging folder in merge directory if it exists");
+
+        try
+        {
+            if(stagingDir.exists())
+            {
+                FileUtil.deleteFolder(stagingDir);
+            }
+            csm.ok();
+        }
+        catch (Exception e)
+        {
+            csm.fail(e);
+        }
+
+        csm.stepMsg("Creating staging folder in merge directory");
+
+        if(stagingDir.mkdir())
+        {
+            csm.ok();
+        }
+        else
+        {
+            csm.fail();
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            try
+            {
+                if(!swapping && stagingDir.exists())
+                {
+                    FileUtil.deleteFolder(stagingDir);
+                }
+            }
+            catch (FileSystemException ignored)
+            {
+
+            }
+        }));
+    }
+
+    private void createStagingTreeForModule(Module module, ConsoleStatusManager csm)
+    {
+        csm.stepMsg("Creating staging tree for module '" + module.name + "'");
+
+        File srcMain = new File(getSrcMainPathForModule(STAGING_FOLDER_PATH, module));
+
+        if(srcMain.mkdirs())
+        {
+            csm.ok();
         }
-        catch (Exception e)
+        else
         {
-            csm.fail(e);
+            csm.fail();
         }
     }
 
-    private void copyNewNativeLibsForModule(Module module)
+    /*
+     * Every item is swapped in with two renames: the existing item is moved
+     * into the staging folder, then the staged item is moved into its place.
+     * If a rename fails, the items swapped so far are moved back.
+     */
+    private void swapInStagedModules()
     {
-        csm.stepMsg("Copying new native libs for module '" + module.name + "'");
+        csm.stepMsg("Swapping staged modules into merge directory");
 
-        File newJniLibsDir = getFileForItem(Location.NEW, module, ModuleItem.NATIVE_LIBS);
-
-        if(!newJniLibsDir.exists())
-        {
-            csm.na();
-            return;
-        }
+        File replacedDir = new File(STAGING_FOLDER_PATH, REPLACED_FOLDER_NAME);
+        List<File[]> swapped = new ArrayList<>();
+        swapping = true;
 
         try
         {
-            String outDir = getItemPath(Location.EXISTING, module, ModuleItem.NATIVE_LIBS);
-            FileUtil.recursiveCopyDir(newJniLibsDir.getAbsolutePath(), outDir);
+            for(Module module : Module.values())
+            {
+                if(!getFileForItem(Location.STAGING, module, ModuleItem.ROOT_DIR).exists())
+                {
+                    continue;
+                }
+
+                for(ModuleItem item : SYNCED_ITEMS)
+                {
+                    File staged = getFileForItem(Location.STAGING, module, item);
+                    File existing = getFileForItem(Location.EXISTING, module, item);
+                    File replaced = new File(replacedDir, module.name + File.separator + item.stdName);
+
+                    swapped.add(new File[] {staged, existing, replaced});
+                    swapItem(staged, existing, replaced);
+                }
+            }
+
             csm.ok();
         }
         catch (Exception e)
         {
+            for(int i = swapped.size() - 1; i >= 0; i--)
+            {
+                File[] item = swapped.get(i);
+                unswapItem(item[0], item[1], item[2]);
+            }
+
             csm.fail(e);
         }
-    }
-
-    private void deleteOldNativeLibsForModule(Module module)
-    {
-        csm.stepMsg("Deleting native libs for module '" + module.name + "'");
 
-        File jniLibsFolder = getFileForItem(Location.EXISTING, module, ModuleItem.NATIVE_LIBS);
-
-        if(!jniLibsFolder.exists())
+        for(Map.Entry<Module, String> fingerprint : stagedFingerprints.entrySet())
         {
-            csm.na();
-            return;
+            recordFingerprintsForModule(fingerprint.getKey(), fingerprint.getValue(), csm);
         }
 
+        csm.stepMsg("Deleting staging folder");
+
         try
         {
-            FileUtil.deleteFolder(jniLibsFolder);
+            csm.recordIo(0, 0, deleteFolder(new File(STAGING_FOLDER_PATH)));
             csm.ok();
         }
         catch (Exception e)
@@ -257,37 +1880,51 @@ public class Updater
         }
     }
 
-    private void copyNewLibsForModule(Module module)
+    private static void swapItem(File staged, File existing, File replaced) throws IOException
     {
-        csm.stepMsg("Copying new libs for module '" + module.name + "'");
-
-        File newLibsDir = getFileForItem(Location.NEW, module, ModuleItem.LIBS);
+        if(existing.exists())
+        {
+            Files.createDirectories(replaced.getParentFile().toPath());
+            Files.move(existing.toPath(), replaced.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
 
-        if(!newLibsDir.exists())
+        if(staged.exists())
         {
-            csm.na();
-            return;
+            Files.createDirectories(existing.getParentFile().toPath());
+            Files.move(staged.toPath(), existing.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        else if(replaced.isDirectory())
+        {
+            // Without --transactional, a folder with nothing new in it is emptied but kept
+            Files.createDirectories(existing.toPath());
         }
+    }
 
+    private static void unswapItem(File staged, File existing, File replaced)
+    {
         try
         {
-            String outDir = getItemPath(Location.EXISTING, module, ModuleItem.LIBS);
-            FileUtil.recursiveCopyDir(newLibsDir.getAbsolutePath(), outDir);
-            csm.ok();
+            if(!staged.exists() && existing.exists())
+            {
+                Files.move(existing.toPath(), staged.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            if(replaced.exists())
+            {
+                Files.move(replaced.toPath(), existing.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
         }
-        catch (Exception e)
+        catch (IOException ignored)
         {
-            csm.fail(e);
+
         }
     }
 
-    private void deleteOldLibsForModule(Module module)
+    private void extractAarToTempDir(Module module, ConsoleStatusManager csm)
     {
-        csm.stepMsg("Deleting libs for module '" + module.name + "'");
-
-        File libsFolder = getFileForItem(Location.EXISTING, module, ModuleItem.LIBS);
+        csm.stepMsg("Extracting '" + module.name + "' AAR to " + (memoryTrees.containsKey(module) ? "memory" : "temporary directory"));
 
-        if(!libsFolder.exists())
+        if(!module.isPackagedInArchive)
         {
             csm.na();
             return;
@@ -295,8 +1932,26 @@ public class Updater
 
         try
         {
-            FileUtil.deleteAllThingsInFolder(libsFolder);
-            csm.ok();
+            File dest = new File(TEMP_FOLDER_PATH + File.separator + module.name + "-aar");
+            boolean staged = memoryTrees.containsKey(module);
+
+            if(staged && extractToMemory(module, makeFileForModuleAar(module), csm))
+            {
+                csm.ok();
+            }
+            else if(extractToTempDir(makeFileForModuleAar(module), dest, csm))
+            {
+                csm.ok();
+
+                if(staged)
+                {
+                    csm.detail(OUT_OF_DIRECT_MEMORY);
+                }
+            }
+            else
+            {
+                csm.na("Already extracted from the same archive");
+            }
         }
         catch (Exception e)
         {
@@ -304,13 +1959,11 @@ public class Updater
         }
     }
 
-    private void copyNewAssetsForModule(Module module)
+    private void extractSourcesJarToTempDir(Module module, ConsoleStatusManager csm)
     {
-        csm.stepMsg("Copying new assets for module '" + module.name + "'");
+        csm.stepMsg("Extracting '" + module.name + "' sources JAR to " + (memoryTrees.containsKey(module) ? "memory" : "temporary directory"));
 
-        File newAsssetsDir = getFileForItem(Location.NEW, module, ModuleItem.ASSETS);
-
-        if(!newAsssetsDir.exists())
+        if(!module.isPackagedInArchive)
         {
             csm.na();
             return;
@@ -318,9 +1971,26 @@ public class Updater
 
         try
         {
-            String outDir = getItemPath(Location.EXISTING, module, ModuleItem.ASSETS);
-            FileUtil.recursiveCopyDir(newAsssetsDir.getAbsolutePath(), outDir);
-            csm.ok();
+            String path = TEMP_FOLDER_PATH + File.separator + module.name + "-sources";
+            boolean staged = memoryTrees.containsKey(module);
+
+            if(staged && extractToMemory(module, makeFileForModuleSourcesJar(module), csm))
+            {
+                csm.ok();
+            }
+            else if(extractToTempDir(makeFileForModuleSourcesJar(module), new File(path), csm))
+            {
+                csm.ok();
+
+                if(staged)
+                {
+                    csm.detail(OUT_OF_DIRECT_MEMORY);
+                }
+            }
+            else
+            {
+                csm.na("Already extracted from the same archive");
+            }
         }
         catch (Exception e)
         {
@@ -328,22 +1998,24 @@ public class Updater
         }
     }
 
-    private void deleteOldAssetsForModule(Module module)
+    private void openJournal()
     {
-        csm.stepMsg("Deleting assets for module '" + module.name + "'");
-
-        File assetsFolder = getFileForItem(Location.EXISTING, module, ModuleItem.ASSETS);
-
-        if(!assetsFolder.exists())
-        {
-            csm.na();
-            return;
-        }
+        csm.stepMsg(resume ? "Opening journal of the interrupted run" : "Starting journal");
 
         try
         {
-            FileUtil.deleteAllThingsInFolder(assetsFolder);
+            /*
+             * Steps recorded with other settings wrote different output
+             */
+            String signature = new File(newStockDir).getAbsolutePath() + "|" + (sync ? "sync" : direct ? "direct" : "tempDir") + "|" + outputSettings();
+
+            journal = Journal.open(new File(existingMergeDir, Journal.FILE_NAME), signature, resume);
             csm.ok();
+
+            if(resume && !journal.isResuming())
+            {
+                csm.detail("Nothing to resume, starting from scratch");
+            }
         }
         catch (Exception e)
         {
@@ -351,20 +2023,13 @@ public class Updater
         }
     }
 
-    private void copyNewResourcesForModule(Module module)
+    private void deleteJournal()
     {
-        csm.stepMsg("Copying new resources for module '" + module.name + "'");
+        csm.stepMsg("Deleting journal");
 
         try
         {
-            // Some modules may not have resources
-            if (new File(getItemPath(Location.NEW, module, ModuleItem.RESOURCES)).exists())
-            {
-                FileUtil.recursiveCopyDir(
-                        getItemPath(Location.NEW, module, ModuleItem.RESOURCES),
-                        getItemPath(Location.EXISTING, module, ModuleItem.RESOURCES));
-            }
-
+            journal.delete();
             csm.ok();
         }
         catch (Exception e)
@@ -373,13 +2038,13 @@ public class Updater
         }
     }
 
-    private void deleteOldResourcesForModule(Module module)
+    private void loadSourceTransforms()
     {
-        csm.stepMsg("Deleting resources for module '" + module.name + "'");
+        csm.stepMsg("Loading source transforms");
 
         try
         {
-            FileUtil.deleteAllThingsInFolder(getFileForItem(Location.EXISTING, module, ModuleItem.RESOURCES));
+            sourceTransforms = SourceTransforms.load(new File(transformsPath));
             csm.ok();
         }
         catch (Exception e)
@@ -388,13 +2053,13 @@ public class Updater
         }
     }
 
-    private void deleteOldSourceForModule(Module module)
+    private void openExtractionStore()
     {
-        csm.stepMsg("Deleting Java code for module " + module.name);
+        csm.stepMsg("Opening extraction store");
 
         try
         {
-            FileUtil.deleteAllThingsInFolder(getFileForItem(Location.EXISTING, module, ModuleItem.JAVA_SOURCE));
+            extractionStore = ExtractionStore.open(new File(storePath), storeMaxBytes);
             csm.ok();
         }
         catch (Exception e)
@@ -403,17 +2068,17 @@ public class Updater
         }
     }
 
-    private void copySourceForModule(Module module)
+    private void trimExtractionStore()
     {
-        csm.stepMsg("Copying new Java code for module " + module.name);
+        csm.stepMsg("Trimming extraction store");
 
         try
         {
-            FileUtil.recursiveCopyDir(
-                    getItemPath(Location.NEW, module, ModuleItem.JAVA_SOURCE),
-                    getItemPath(Location.EXISTING, module, ModuleItem.JAVA_SOURCE));
-
+            int evicted = extractionStore.evictAndSave();
             csm.ok();
+            csm.detail(extractionStore.hits.get() + " entries (" + FileUtil.formatSize(extractionStore.hitBytes.get()) + ") taken from the store, "
+                    + extractionStore.added.get() + " (" + FileUtil.formatSize(extractionStore.addedBytes.get()) + ") added, "
+                    + evicted + " evicted");
         }
         catch (Exception e)
         {
@@ -421,146 +2086,229 @@ public class Updater
         }
     }
 
-    private void preliminaryCheckExistingMergeDir()
+    /*
+     * Extracts one of the archives of a module into its MemoryStage tree,
+     * under the same path as in the temporary folder. If the direct buffers
+     * run out, the module goes back to the temporary folder, including its
+     * AAR if that was already staged, and false is returned.
+     */
+    private boolean extractToMemory(Module module, File archive, ConsoleStatusManager csm) throws IOException
     {
-        csm.stepMsg("Running preliminary check on existing merge directory");
+        MemoryStage.Tree tree = memoryTrees.get(module);
+        boolean sourcesJar = archive.getName().endsWith(SOURCES_JAR_SUFFIX);
+        String root = module.name + (sourcesJar ? "-sources" : "-aar");
 
-        for(Module module : Module.values())
+        try
         {
-            if(!getFileForItem(Location.EXISTING, module, ModuleItem.ROOT_DIR).exists())
+            recordExtractionIo(newExtractor().extractAll(archive, tree, root, csm.progress()), csm);
+
+            /*
+             * The sources JAR has a manifest of its own, which is not part
+             * of the module's Java code
+             */
+            if(sourcesJar)
             {
-                csm.fail();
+                tree.removeBelow(root + "/META-INF");
             }
-        }
 
-        if(!getFileForItem(Location.EXISTING, Module.FTCROBOTCONTROLLER, ModuleItem.ROOT_DIR).exists())
-        {
-            csm.fail();
+            return true;
         }
+        catch (OutOfMemoryError e)
+        {
+            memoryTrees.remove(module);
+            tree.release();
 
-        csm.ok();
+            if(sourcesJar)
+            {
+                extractToTempDir(makeFileForModuleAar(module), new File(TEMP_FOLDER_PATH + File.separator + module.name + "-aar"), csm);
+            }
+
+            return false;
+        }
     }
 
-    private void preliminaryCheckNewStockDir()
+    /*
+     * Returns false if dest already holds an extraction of the same
+     * archive, made by an earlier step of the batch or by the interrupted
+     * run being resumed
+     */
+    private boolean extractToTempDir(File archive, File dest, ConsoleStatusManager csm) throws IOException
     {
-        csm.stepMsg("Running preliminary check on new stock SDK");
+        String fingerprint = null;
 
-        for(Module module : Module.values())
+        if(batchState != null || journal != null)
         {
-            if(!module.isPackagedInArchive)
+            fingerprint = FingerprintIndex.fingerprintArchives(archive);
+
+            if(dest.isDirectory() && batchState != null && fingerprint.equals(batchState.extractedArchives.get(dest.getPath())))
             {
-                continue;
+                return false;
             }
 
-            if(!(makeFileForModuleAar(module).exists() && makeFileForModuleSourcesJar(module).exists()))
+            if(dest.isDirectory() && journal != null && journal.isDone(JOURNAL_EXTRACTIONS, dest.getName(), fingerprint))
             {
-                csm.fail();
+                return false;
             }
-        }
-
-        csm.ok();
-    }
-
-    private void prepareTempDir()
-    {
-        TEMP_FOLDER_PATH = existingMergeDir + File.separator + TEMP_FOLDER_NAME;
-
-        File tempDir = new File(TEMP_FOLDER_PATH);
 
-        csm.stepMsg("Deleting temporary folder in merge directory if it exists");
-
-        try
-        {
-            if(tempDir.exists())
+            if(batchState != null)
             {
-                FileUtil.deleteFolder(tempDir);
+                batchState.extractedArchives.remove(dest.getPath());
             }
-            csm.ok();
         }
-        catch (Exception e)
+
+        /*
+         * Files may be hard linked into the merge directory, so an older
+         * extraction is deleted rather than overwritten
+         */
+        if(dest.exists())
         {
-            csm.fail(e);
+            deleteFolder(dest);
         }
 
-        csm.stepMsg("Creating temporary folder in merge directory");
+        recordExtractionIo(newExtractor().extractAll(archive, dest, csm.progress()), csm);
 
-        if(tempDir.mkdir())
+        /*
+         * The sources JAR has a manifest of its own, which is not part of
+         * the module's Java code
+         */
+        File metaInf = new File(dest, "META-INF");
+
+        if(archive.getName().endsWith(SOURCES_JAR_SUFFIX) && metaInf.exists())
         {
-            csm.ok();
+            deleteFolder(metaInf);
         }
-        else
+
+        if(batchState != null)
         {
-            csm.fail();
+            batchState.extractedArchives.put(dest.getPath(), fingerprint);
         }
+
+        if(journal != null)
+        {
+            journal.recordDone(JOURNAL_EXTRACTIONS, dest.getName(), fingerprint);
+        }
+
+        return true;
     }
 
-    private void extractAarToTempDir(Module module)
+    /*
+     * When several modules are processed at once, they share the extraction
+     * threads between them rather than each starting a full set
+     */
+    private ParallelExtractor newExtractor()
     {
-        csm.stepMsg("Extracting '" + module.name + "' AAR to temporary directory");
+        return new ParallelExtractor(Math.max(1, extractThreads / jobs), extractionStore);
+    }
 
-        if(!module.isPackagedInArchive)
-        {
-            csm.na();
-            return;
-        }
+    private static void recordExtractionIo(ParallelExtractor.Result result, ConsoleStatusManager csm)
+    {
+        csm.recordIo(result.bytesRead, result.bytesWritten, result.files);
+    }
 
-        try
-        {
-            new ZipFile(makeFileForModuleAar(module)).extractAll(TEMP_FOLDER_PATH + File.separator + module.name + "-aar");
-            csm.ok();
-        }
-        catch (Exception e)
-        {
-            csm.fail(e);
-        }
+    private File makeFileForModuleSourcesJar(Module module)
+    {
+        return new File(newStockDir + File.separator + "libs" + File.separator + module.name + SOURCES_JAR_SUFFIX);
     }
 
-    private void extractSourcesJarToTempDir(Module module)
+    private File makeFileForModuleAar(Module module)
     {
-        csm.stepMsg("Extracting '" + module.name + "' sources JAR to temporary directory");
+        return new File(newStockDir + File.separator + "libs" + File.separator + module.name + AAR_SUFFIX);
+    }
 
-        if(!module.isPackagedInArchive)
-        {
-            csm.na();
-            return;
-        }
+    private static String getSrcMainPathForModule(String root, Module module)
+    {
+        return root + File.separator + module.name + File.separator + "src" + File.separator + "main";
+    }
 
-        try
+    private static String getPathForFolderInModuleSrcMain(String root, Module module, String folderName)
+    {
+        return getSrcMainPathForModule(root, module) + File.separator + folderName;
+    }
+
+    private File getFileForItem(Location location, Module module, ModuleItem item)
+    {
+        return new File(getItemPath(location, module, item));
+    }
+
+    private File getFileForItemEntry(Location location, Module module, ModuleItem item, String relativePath)
+    {
+        if(relativePath.isEmpty())
         {
-            String path = TEMP_FOLDER_PATH + File.separator + module.name + "-sources";
-            new ZipFile(makeFileForModuleSourcesJar(module)).extractAll(path);
-            FileUtil.deleteFolder(new File(path + File.separator + "META-INF"));
-            csm.ok();
+            return getFileForItem(location, module, item);
         }
-        catch (Exception e)
+
+        return new File(getItemPath(location, module, item), relativePath);
+    }
+
+    private EntryWriter newEntryWriter(Module module)
+    {
+        return new EntryWriter(module, rewriteManifests, normalizeLineEndings, entrySummary, sourceTransforms);
+    }
+
+    /*
+     * The writer through which the copies of an item from the temporary
+     * folder go, or null if the item is not transformed and can be copied
+     * as is
+     */
+    private EntryWriter transformingWriter(Module module, ModuleItem item)
+    {
+        if(sourceTransforms == null || sourceTransforms.forItem(module, item).isEmpty())
         {
-            csm.fail(e);
+            return null;
         }
+
+        return newEntryWriter(module);
     }
 
-    private File makeFileForModuleSourcesJar(Module module)
+    /*
+     * Whether the new item exists, in memory if the module is staged there
+     * or else on disk
+     */
+    private boolean newItemExists(Module module, ModuleItem item)
     {
-        return new File(newStockDir + File.separator + "libs" + File.separator + module.name + "-sources.jar");
+        MemoryStage.Tree tree = memoryTrees.get(module);
+
+        if(tree != null)
+        {
+            return tree.exists(memoryPathForItem(module, item));
+        }
+
+        return getFileForItem(Location.NEW, module, item).exists();
     }
 
-    private File makeFileForModuleAar(Module module)
+    private CopyEngine.Stats copyNewItemForModule(Module module, ModuleItem item, FileUtil.LinkMode linkMode, ConsoleStatusManager csm) throws IOException
     {
-        return new File(newStockDir + File.separator + "libs" + File.separator + module.name + ".aar");
+        File out = getFileForItem(writeLocation(), module, item);
+        MemoryStage.Tree tree = memoryTrees.get(module);
+
+        if(tree != null)
+        {
+            return copyEngine.copyTree(tree, memoryPathForItem(module, item), out, csm.progress(), transformingWriter(module, item), item);
+        }
+
+        return copyEngine.copyDir(getFileForItem(Location.NEW, module, item), out, linkMode, csm.progress(), transformingWriter(module, item), item);
     }
 
-    private String getSrcMainPathForModule(Module module)
+    /*
+     * The path of a new item in a MemoryStage tree, which is its path
+     * relative to the temporary folder
+     */
+    private String memoryPathForItem(Module module, ModuleItem item)
     {
-        return existingMergeDir + File.separator + module.name + File.separator + "src" + File.separator + "main";
+        return getItemPath(Location.NEW, module, item).substring(TEMP_FOLDER_PATH.length() + 1).replace(File.separatorChar, '/');
     }
 
-    private String getPathForFolderInModuleSrcMain(Module module, String folderName)
+    /*
+     * Where the new items of a module are written
+     */
+    private Location writeLocation()
     {
-        return getSrcMainPathForModule(module) + File.separator + folderName;
+        return transactional ? Location.STAGING : Location.EXISTING;
     }
 
-    private File getFileForItem(Location location, Module module, ModuleItem item)
+    private boolean usesTempDir()
     {
-        return new File(getItemPath(location, module, item));
+        return !direct && !sync;
     }
 
     private String getItemPath(Location location, Module module, ModuleItem item)
@@ -594,28 +2342,34 @@ public class Updater
              *         - java (Java source)
              *            - com.some.java.packageA
              *            - org.some.java.packageEtc
+             *
+             * The staging tree has the same layout, rooted in the staging
+             * folder instead of the merge directory.
              */
 
             /*
              * Standard
              */
             case EXISTING:
+            case STAGING:
             {
+                String root = location == Location.STAGING ? STAGING_FOLDER_PATH : existingMergeDir;
+
                 if(item == ModuleItem.ROOT_DIR)
                 {
-                    return existingMergeDir + File.separator + module.name;
+                    return root + File.separator + module.name;
                 }
                 else if(item == ModuleItem.LIBS)
                 {
-                    return existingMergeDir + File.separator + module.name + File.separator + item.stdName;
+                    return root + File.separator + module.name + File.separator + item.stdName;
                 }
                 else if(item == ModuleItem.MANIFEST)
                 {
-                    return getSrcMainPathForModule(module) + File.separator + item.stdName;
+                    return getSrcMainPathForModule(root, module) + File.separator + item.stdName;
                 }
                 else
                 {
-                    return getPathForFolderInModuleSrcMain(module, item.stdName);
+                    return getPathForFolderInModuleSrcMain(root, module, item.stdName);
                 }
             }
 
@@ -685,6 +2439,30 @@ public class Updater
 
         System.out.println();
         System.out.println("Script completed successfully in " + format.format(delta/1000d) + " seconds");
+        System.out.println("Copied " + copyEngine.getTotals());
+        System.out.println("  " + copyEngine.getTotals().describeRoutes());
+
+        if(sourceTransforms != null)
+        {
+            System.out.println("Transformed " + entrySummary.transformedFiles.get() + " files");
+        }
+
+        if(normalizeLineEndings)
+        {
+            long normalizedFiles = entrySummary.normalizedFiles.get() + copyEngine.getTotals().normalizedFiles.get();
+            System.out.println("Converted the line endings of " + normalizedFiles + " files to LF");
+        }
+
+        if(!entrySummary.rewrittenManifests.isEmpty())
+        {
+            System.out.println();
+            System.out.println("Rewrote library manifests:");
+
+            for(String manifest : entrySummary.rewrittenManifests)
+            {
+                System.out.println("  " + manifest);
+            }
+        }
 
         System.out.println();
         System.out.println("=======================================================");
@@ -692,10 +2470,41 @@ public class Updater
         System.out.println("=======================================================");
         System.out.println();
 
-        System.out.println("1. Remove the version code, version name, and 'uses-sdk' tag for each library from its manifest");
-        System.out.println("2. Update the version code and name for each library in its build.gradle file");
-        System.out.println("3. Update versionNumbers.properties");
-        System.out.println("4. Use AS to reformat all text files to LF line endings (select root project folder, File -> Line Endings -> LF)");
+        int itemNum = 1;
+
+        if(!rewriteManifests)
+        {
+            System.out.println(itemNum++ + ". Remove the version code, version name, and 'uses-sdk' tag for each library from its manifest");
+        }
+
+        if(!updateVersions)
+        {
+            System.out.println(itemNum++ + ". Update the version code and name for each library in its build.gradle file");
+            System.out.println(itemNum++ + ". Update versionNumbers.properties");
+        }
+        else
+        {
+            if(!buildGradlesLeftToUpdate.isEmpty())
+            {
+                System.out.println(itemNum++ + ". Update the version code and name in the build.gradle file of " + String.join(", ", buildGradlesLeftToUpdate));
+            }
+
+            if(versionNumbersLeftToUpdate)
+            {
+                System.out.println(itemNum++ + ". Update versionNumbers.properties");
+            }
+        }
+
+        if(!normalizeLineEndings)
+        {
+            System.out.println(itemNum++ + ". Use AS to reformat all text files to LF line endings (select root project folder, File -> Line Endings -> LF)");
+        }
+
+        if(itemNum == 1)
+        {
+            System.out.println("Nothing! Just review the changes before committing them.");
+        }
+
         System.out.println();
         System.out.print((char)27 + "[0m");
     }
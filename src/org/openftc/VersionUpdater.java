@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019 OpenFTC Team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.openftc;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Carries the version code and name of each library over from its AAR into
+ * its build.gradle and into versionNumbers.properties. Only the manifest
+ * entry of each AAR is read; the rest of the archive is never inflated.
+ * In build.gradle, only the defaultConfig block is looked at, so that e.g.
+ * the versions of product flavors are left alone.
+ */
+class VersionUpdater
+{
+    private static final String MANIFEST_ENTRY = "AndroidManifest.xml";
+    private static final Pattern GRADLE_DEFAULT_CONFIG = Pattern.compile("\\bdefaultConfig\\s*\\{");
+    private static final Pattern GRADLE_VERSION_CODE = Pattern.compile("(\\bversionCode\\s*=?\\s*)(\\d+)");
+    private static final Pattern GRADLE_VERSION_NAME = Pattern.compile("(\\bversionName\\s*=?\\s*)([\"'])([^\"']*)\\2");
+    private static final Pattern PROPERTY_LINE = Pattern.compile("^([ \\t]*)([^#!=:\\s]+)([ \\t]*[=:][ \\t]*)(.*?)([ \\t\\r]*)$", Pattern.MULTILINE);
+
+    static class Version
+    {
+        final String code;
+        final String name;
+
+        Version(String code, String name)
+        {
+            this.code = code;
+            this.name = name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "versionCode " + code + ", versionName \"" + name + "\"";
+        }
+    }
+
+    /*
+     * The outcome of updating versionNumbers.properties
+     */
+    static class VersionNumbersUpdate
+    {
+        final boolean changed;
+
+        // The number of keys that were named after one of the modules
+        final int matchedKeys;
+
+        VersionNumbersUpdate(boolean changed, int matchedKeys)
+        {
+            this.changed = changed;
+            this.matchedKeys = matchedKeys;
+        }
+    }
+
+    /*
+     * Returns null if the manifest does not declare a version
+     */
+    static Version readFromAar(File aar) throws IOException
+    {
+        try (ZipFile zipFile = new ZipFile(aar))
+        {
+            ZipEntry entry = zipFile.getEntry(MANIFEST_ENTRY);
+
+            if(entry == null)
+            {
+                throw new IOException(aar + " has no " + MANIFEST_ENTRY);
+            }
+
+            try (InputStream in = zipFile.getInputStream(entry))
+            {
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+
+                while (reader.hasNext())
+                {
+                    if(reader.next() == XMLStreamConstants.START_ELEMENT)
+                    {
+                        String code = reader.getAttributeValue(ManifestRewriter.ANDROID_NS, "versionCode");
+                        String name = reader.getAttributeValue(ManifestRewriter.ANDROID_NS, "versionName");
+                        reader.close();
+
+                        return code != null && name != null ? new Version(code, name) : null;
+                    }
+                }
+
+                return null;
+            }
+            catch (XMLStreamException e)
+            {
+                throw new IOException("Cannot parse the manifest of " + aar, e);
+            }
+        }
+    }
+
+    /*
+     * Returns null if the defaultConfig block of the file does not declare
+     * both a version code and a version name
+     */
+    static Version readFromBuildGradle(File buildGradle) throws IOException
+    {
+        String content = read(buildGradle);
+        int[] block = defaultConfigBlock(content);
+
+        if(block == null)
+        {
+            return null;
+        }
+
+        Matcher code = GRADLE_VERSION_CODE.matcher(content).region(block[0], block[1]);
+        Matcher name = GRADLE_VERSION_NAME.matcher(content).region(block[0], block[1]);
+
+        return code.find() && name.find() ? new Version(code.group(2), name.group(3)) : null;
+    }
+
+    /*
+     * Returns whether the file was changed. Callers should check with
+     * readFromBuildGradle() that there is a version to update first.
+     */
+    static boolean updateBuildGradle(File buildGradle, Version version) throws IOException
+    {
+        String original = read(buildGradle);
+        int[] block = defaultConfigBlock(original);
+
+        if(block == null)
+        {
+            return false;
+        }
+
+        String body = original.substring(block[0], block[1]);
+        body = GRADLE_VERSION_CODE.matcher(body).replaceAll("$1" + Matcher.quoteReplacement(version.code));
+        body = GRADLE_VERSION_NAME.matcher(body).replaceAll("$1$2" + Matcher.quoteReplacement(version.name) + "$2");
+
+        return writeIfChanged(buildGradle, original, original.substring(0, block[0]) + body + original.substring(block[1]));
+    }
+
+    /*
+     * Updates the keys named after a module followed by 'VersionCode' or
+     * 'VersionName' (ignoring case and any '.', '_' or '-' in between)
+     */
+    static VersionNumbersUpdate updateVersionNumbers(File properties, Map<String, Version> versions) throws IOException
+    {
+        String original = read(properties);
+        Matcher matcher = PROPERTY_LINE.matcher(original);
+        StringBuffer updated = new StringBuffer();
+        int matchedKeys = 0;
+
+        while (matcher.find())
+        {
+            String key = matcher.group(2).replaceAll("[._-]", "").toLowerCase(Locale.ROOT);
+            String value = matcher.group(4);
+
+            for(Map.Entry<String, Version> version : versions.entrySet())
+            {
+                String module = version.getKey().toLowerCase(Locale.ROOT);
+
+                if(key.equals(module + "versioncode"))
+                {
+                    value = version.getValue().code;
+                    matchedKeys++;
+                }
+                else if(key.equals(module + "versionname"))
+                {
+                    value = version.getValue().name;
+                    matchedKeys++;
+                }
+            }
+
+            matcher.appendReplacement(updated, Matcher.quoteReplacement(matcher.group(1) + matcher.group(2) + matcher.group(3) + value + matcher.group(5)));
+        }
+
+        matcher.appendTail(updated);
+
+        return new VersionNumbersUpdate(writeIfChanged(properties, original, updated.toString()), matchedKeys);
+    }
+
+    /*
+     * Returns the start and end of the body of the defaultConfig block, or
+     * null if there is none. Braces in strings and comments are skipped.
+     */
+    private static int[] defaultConfigBlock(String content)
+    {
+        Matcher matcher = GRADLE_DEFAULT_CONFIG.matcher(content);
+
+        if(!matcher.find())
+        {
+            return null;
+        }
+
+        int depth = 1;
+
+        for(int i = matcher.end(); i < content.length(); i++)
+        {
+            char c = content.charAt(i);
+
+            if(c == '"' || c == '\'')
+            {
+                int end = i + 1;
+                while (end < content.length() && content.charAt(end) != c && content.charAt(end) != '\n')
+                {
+                    end += content.charAt(end) == '\\' ? 2 : 1;
+                }
+
+                i = end;
+            }
+            else if(content.startsWith("//", i))
+            {
+                int end = content.indexOf('\n', i);
+                i = end == -1 ? content.length() : end;
+            }
+            else if(content.startsWith("/*", i))
+            {
+                int end = content.indexOf("*/", i + 2);
+                i = end == -1 ? content.length() : end + 1;
+            }
+            else if(c == '{')
+            {
+                depth++;
+            }
+            else if(c == '}' && --depth == 0)
+            {
+                return new int[]{matcher.end(), i};
+            }
+        }
+
+        return null;
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static boolean writeIfChanged(File file, String original, String updated) throws IOException
+    {
+        if(updated.equals(original))
+        {
+            return false;
+        }
+
+        Files.write(file.toPath(), updated.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+}